@@ -0,0 +1,130 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+
+/*
+ * Sends the Acks of one selective repeat flow on the server, with the delayed Ack policy of delack=<n>.
+ *
+ * With delack=<n> (which needs ack=sack, so one cumulative Ack covers every segment before it) an in-order
+ * segment is not acked straight away: the Ack waits until n segments have arrived or DELAYED_ACK_TIMEOUT
+ * has passed since the first of them, whichever comes first. A duplicate, a segment that leaves or fills a
+ * gap, and the segment that completes the transfer are acked at once, so the client's loss detection (fast
+ * retransmit on duplicate Acks) is not slowed down. n is capped at half the window, so a client with a full
+ * window never waits for the timer. The client adds DELAYED_ACK_TIMEOUT to its retransmission timeout
+ * (see RttEstimator), so a delayed Ack is not mistaken for a lost one.
+ *
+ * Binary Acks are encoded into one reused datagram without building a Segment.
+ */
+public class AckSender {
+
+	static final int DELAYED_ACK_TIMEOUT = 25;  // ms the first unacked segment waits for more before it is acked
+
+	private final String name;                  // prefix of the log messages, e.g. SERVER
+	private final DatagramSocket socket;
+	private final String codec;
+	private final SegmentChecksum checksum;     // the flow's checksum algorithm
+	private final boolean selectiveAcks;
+	private final int every;                    // segments covered by one Ack (1 = ack every segment at once)
+	private final float loss;                   // probability of simulating a lost Ack
+	private final byte[] ackBuf = new byte[SegmentCodec.HEADER_SIZE + 16];
+	private final DatagramPacket ackPacket = new DatagramPacket(ackBuf, ackBuf.length);
+
+	private int pending;                        // in-order segments not acked yet
+	private long deadline;                      // System.nanoTime() by which the pending Ack is sent
+	private InetAddress address;                // where the pending Ack goes
+	private int port;
+	private int ackSeq;                         // the pending Ack: cumulative ack point and SACK bitmap
+	private long sackBits;
+
+	/* constructor; every is the delack=<n> option, applied only with selective (cumulative) Acks */
+	public AckSender(String name, DatagramSocket socket, String codec, SegmentChecksum checksum, boolean selectiveAcks, int every, int windowSize, float loss) {
+		this.name = name;
+		this.socket = socket;
+		this.codec = codec;
+		this.checksum = checksum;
+		this.selectiveAcks = selectiveAcks;
+		this.every = selectiveAcks ? Math.max(1, Math.min(every, windowSize / 2)) : 1;
+		this.loss = loss;
+		if (every > 1 && !selectiveAcks) Log.warn(name + ": Ignoring delack (It Needs ack=sack)");
+		else if (this.every > 1) Log.info(name + ": Acking Every " + this.every + " Segments Or After " + DELAYED_ACK_TIMEOUT + "ms");
+	}
+
+	/*
+	 * acknowledges a Data or End segment the window has just handled (seqNum is its own seqNum);
+	 * urgent (a duplicate, or the segment that completed the transfer) is acked at once
+	 */
+	public void ack(InetAddress address, int port, int seqNum, ReceiveWindow window, boolean urgent) throws IOException {
+		this.address = address;
+		this.port = port;
+		if (!selectiveAcks) {
+			this.ackSeq = seqNum;
+			send();
+			return;
+		}
+
+		// A Gap Left Open Or Just Closed Is Reported At Once
+		boolean gap = sackBits != 0 || window.getSackBits() != 0;
+		this.ackSeq = window.getCumulativeAck();
+		this.sackBits = window.getSackBits();
+		if (urgent || gap || ++pending >= every) {
+			send();
+		} else if (pending == 1) {
+			deadline = System.nanoTime() + DELAYED_ACK_TIMEOUT * 1_000_000L;
+		}
+	}
+
+	/* sends the pending Ack if its timer has expired */
+	public void flushIfDue() throws IOException {
+		if (pending > 0 && System.nanoTime() - deadline >= 0) send();
+	}
+
+	/* true while an Ack is being held back */
+	public boolean isPending() {
+		return pending > 0;
+	}
+
+	/* how long to wait for the next segment: until the pending Ack is due, or timeoutMs if none is pending */
+	public long waitMillis(long timeoutMs) {
+		if (pending == 0) return timeoutMs;
+		long dueMs = Math.max(0, (deadline - System.nanoTime() + 999_999) / 1_000_000L);
+		return timeoutMs <= 0 ? dueMs : Math.min(timeoutMs, dueMs);
+	}
+
+	/* receives the next datagram on the socket, sending the pending Ack when it falls due in the meantime */
+	public void receive(DatagramPacket packet) throws IOException {
+		if (pending > 0) {
+			int timeout = socket.getSoTimeout();
+			socket.setSoTimeout((int) Math.max(1, waitMillis(0)));
+			try {
+				socket.receive(packet);
+				return;
+			} catch (SocketTimeoutException e) {
+				send();
+			} finally {
+				socket.setSoTimeout(timeout);
+			}
+		}
+		socket.receive(packet);
+	}
+
+	/* sends the current Ack (or simulates its loss) */
+	private void send() throws IOException {
+		pending = 0;
+		if (Protocol.isLost(loss)) {
+			Log.warn(name + ": Simulating ACK Loss. ACK[SEQ#" + ackSeq + "] Is Lost.");
+			return;
+		}
+		if (!SegmentCodec.BINARY.equals(codec)) {
+			Server.sendAck(socket, address, port, ackSeq, codec, checksum, selectiveAcks ? Long.toHexString(sackBits) : "");
+			return;
+		}
+		if (Log.isDebug()) Log.debug(name + ": Send: ACK [SEQ#" + ackSeq + "]" + (selectiveAcks ? "(SACK: " + Long.toHexString(sackBits) + ")" : ""));
+		ackPacket.setData(ackBuf, 0, SegmentCodec.encodeBinaryAck(ackBuf, ackSeq, sackBits, selectiveAcks, checksum));
+		ackPacket.setAddress(address);
+		ackPacket.setPort(port);
+		socket.send(ackPacket);
+		TransferMetrics.instance.ackSent();
+	}
+}
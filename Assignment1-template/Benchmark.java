@@ -0,0 +1,131 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.LongSupplier;
+
+/*
+ * Microbenchmarks for the work done once per segment: encoding and decoding a Segment with either codec,
+ * the checksum (CRC32 and CRC32C over a payload, CRC32C over an encoded binary segment), parsing CSV lines
+ * into the Reading payload form (readAndSend) and splitting a payload back into readings (the server).
+ *
+ * Every benchmark runs for a number of warmup iterations (so the JIT has compiled it) and then for a number
+ * of measured iterations of a fixed duration; the mean time per operation and its standard deviation over
+ * the measured iterations are reported. Results are fed into a sink so the JIT cannot drop the work.
+ *
+ * The JMH harness in jmh/ (built by the pom.xml at the top of the repository) runs these same operations
+ * under JMH, which is the one to trust for published numbers. This class stays as the fallback that needs
+ * nothing but javac.
+ *
+ * To run: java Benchmark [name filter] [option=value ...]
+ *      the name filter runs only the benchmarks whose name contains it, e.g. java Benchmark decode
+ *      options are patch=<n> (readings per payload, default 10), warmup=<n> and iterations=<n>
+ *      (default 5 each) and time=<ms> (duration of one iteration, default 500)
+ */
+public class Benchmark {
+
+	/* one benchmarked operation; returns something derived from its result for the sink */
+	interface Op {
+		long run() throws IOException;
+	}
+
+	private static volatile long sink;    // consumes every result so the work cannot be optimised away
+
+	private final List<String> names = new ArrayList<>();
+	private final List<Op> ops = new ArrayList<>();
+
+	/* the benchmarks over a payload of patchSize readings */
+	Benchmark(int patchSize) throws IOException {
+		String[] lines = new String[patchSize];
+		StringBuilder payloadBuilder = new StringBuilder();
+		for (int i = 0; i < patchSize; i++) {
+			lines[i] = (char) ('A' + i % 26) + "," + (1720456123L + i) + ",12.4,75.2,1013.6";
+			Protocol.appendReading(payloadBuilder, lines[i]);
+		}
+		String payload = payloadBuilder.toString();
+		Segment seg = new Segment(1, SegmentType.Data, payload, patchSize);
+		byte[] javaBytes = SegmentCodec.encode(seg, SegmentCodec.JAVA, SegmentChecksum.CRC_32);
+		byte[] binBytes = SegmentCodec.encode(seg, SegmentCodec.BINARY, SegmentChecksum.CRC_32);
+
+		add("segment.encode.java", () -> SegmentCodec.encode(seg, SegmentCodec.JAVA, SegmentChecksum.CRC_32).length);
+		add("segment.encode.bin", () -> SegmentCodec.encode(seg, SegmentCodec.BINARY, SegmentChecksum.CRC_32).length);
+		add("segment.decode.java", () -> SegmentCodec.decode(javaBytes, 0, javaBytes.length, SegmentChecksum.CRC_32).getSize());
+		add("segment.decode.bin", () -> SegmentCodec.decode(binBytes, 0, binBytes.length, SegmentChecksum.CRC_32).getSize());
+		add("checksum.crc32", () -> SegmentChecksum.CRC_32.ofPayload(payload));
+		add("checksum.crc32c", () -> SegmentChecksum.CRC_32C.ofPayload(payload));
+		add("checksum.wire.crc32c", () -> SegmentChecksum.CRC_32C.ofWire(binBytes, 0, binBytes.length, SegmentCodec.CHECKSUM_AT));
+		add("csv.format", () -> {
+			long length = 0;
+			for (String line : lines) length += Protocol.formatReading(line).length();
+			return length;
+		});
+		add("payload.split", () -> payload.split(";").length);
+	}
+
+	/* the named operation over a payload of patchSize readings, for the JMH harness in jmh/ */
+	public static LongSupplier op(String name, int patchSize) throws IOException {
+		Benchmark benchmark = new Benchmark(patchSize);
+		int index = benchmark.names.indexOf(name);
+		if (index < 0) throw new IllegalArgumentException("Unknown Benchmark " + name + " (Expected One Of " + benchmark.names + ")");
+		Op op = benchmark.ops.get(index);
+		return () -> {
+			try {
+				return op.run();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		};
+	}
+
+	private void add(String name, Op op) {
+		names.add(name);
+		ops.add(op);
+	}
+
+	/* runs the op for about timeMs milliseconds; returns the mean nanoseconds per operation */
+	private static double iteration(Op op, long timeMs) throws IOException {
+		long deadline = System.nanoTime() + timeMs * 1_000_000L;
+		long operations = 0;
+		long result = 0;
+		long start = System.nanoTime();
+		long now;
+		do {
+			// Check The Clock Once Per Batch, Not Once Per Operation
+			for (int i = 0; i < 64; i++) result += op.run();
+			operations += 64;
+			now = System.nanoTime();
+		} while (now < deadline);
+		sink += result;
+		return (double) (now - start) / operations;
+	}
+
+	public static void main(String[] args) throws IOException {
+		String filter = args.length > 0 && !args[0].contains("=") ? args[0] : "";
+		Protocol.instance.initOptions(args, filter.isEmpty() ? 0 : 1);
+		int patchSize = Protocol.instance.getIntOption("patch", 10);
+		int warmup = Protocol.instance.getIntOption("warmup", 5);
+		int iterations = Protocol.instance.getIntOption("iterations", 5);
+		long timeMs = Protocol.instance.getIntOption("time", 500);
+
+		Benchmark benchmark = new Benchmark(patchSize);
+		System.out.println("BENCHMARK: patch=" + patchSize + " warmup=" + warmup + " iterations=" + iterations + " time=" + timeMs + "ms");
+		System.out.println(String.format(Locale.ROOT, "%-22s %12s %10s", "Benchmark", "ns/op", "+-"));
+		for (int b = 0; b < benchmark.ops.size(); b++) {
+			String name = benchmark.names.get(b);
+			if (!name.contains(filter)) continue;
+			Op op = benchmark.ops.get(b);
+			for (int i = 0; i < warmup; i++) iteration(op, timeMs);
+
+			double sum = 0, sumSquares = 0;
+			for (int i = 0; i < iterations; i++) {
+				double nanosPerOp = iteration(op, timeMs);
+				sum += nanosPerOp;
+				sumSquares += nanosPerOp * nanosPerOp;
+			}
+			double mean = sum / iterations;
+			double stddev = Math.sqrt(Math.max(0, sumSquares / iterations - mean * mean));
+			System.out.println(String.format(Locale.ROOT, "%-22s %12.1f %10.1f", name, mean, stddev));
+		}
+	}
+}
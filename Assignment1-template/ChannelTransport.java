@@ -0,0 +1,126 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+
+/*
+ * Transport over a connected, non-blocking DatagramChannel (transport=nio).
+ * Outstanding segments are encoded into Wires (each with its own direct buffer) taken from a pool and
+ * returned to it once acked, and Acks are read into a single direct buffer. With codec=bin the Ack header
+ * is read straight out of that buffer, so receiving an Ack and resending a segment allocate nothing on the heap.
+ */
+public class ChannelTransport implements Transport {
+
+	private final DatagramChannel channel;
+	private final Selector selector;                                 // waits for an Ack with a timeout
+	private final String codec;                                      // wire codec for segments
+	private final SegmentChecksum checksum;                          // checksum algorithm of the flow
+	private final ArrayDeque<Wire> pool = new ArrayDeque<>();        // released Wires, each with a direct buffer of bufferSize bytes
+	private final int bufferSize;                                    // the largest datagram sent (the byte budget, at least MAX_Segment_SIZE)
+	private final ByteBuffer ackBuf = ByteBuffer.allocateDirect(Protocol.MAX_Segment_SIZE);
+	private final byte[] heapAckBuf = new byte[Protocol.MAX_Segment_SIZE]; // copy for Acks in the java codec
+
+	/* constructor, taking over the channel behind the client's socket (see Protocol.initProtocol) */
+	public ChannelTransport(DatagramChannel channel, InetAddress ipAddress, int portNumber, String codec, SegmentChecksum checksum) throws IOException {
+		this(channel, ipAddress, portNumber, codec, checksum, Protocol.MAX_Segment_SIZE);
+	}
+
+	/* constructor with the size of the segment buffers */
+	public ChannelTransport(DatagramChannel channel, InetAddress ipAddress, int portNumber, String codec, SegmentChecksum checksum, int bufferSize) throws IOException {
+		this.channel = channel;
+		this.codec = codec;
+		this.checksum = checksum;
+		this.bufferSize = bufferSize;
+		channel.connect(new InetSocketAddress(ipAddress, portNumber));
+		channel.configureBlocking(false);
+		this.selector = Selector.open();
+		channel.register(selector, SelectionKey.OP_READ);
+	}
+
+	@Override
+	public Wire encode(Segment seg) throws IOException {
+		Wire wire = pool.poll();
+		if (wire == null) {
+			wire = new Wire();
+			wire.buffer = ByteBuffer.allocateDirect(bufferSize);
+		}
+		ByteBuffer buffer = wire.buffer;
+		buffer.clear();
+		if (SegmentCodec.BINARY.equals(codec)) {
+			SegmentCodec.encodeBinary(seg, buffer, checksum);
+		} else {
+			buffer.put(SegmentCodec.encode(seg, codec, checksum));
+		}
+		buffer.flip();
+		wire.length = buffer.limit();
+		return wire;
+	}
+
+	@Override
+	public void send(Wire wire) throws IOException {
+		wire.buffer.rewind();
+		try {
+			channel.write(wire.buffer);
+		} catch (PortUnreachableException e) {
+			// An Earlier Datagram Bounced Because The Server Is Not Listening; The Retransmission Timer Covers It
+		}
+	}
+
+	@Override
+	public boolean receiveAck(int timeoutMs, Ack ack) throws IOException {
+		if (!readAck()) {
+			selector.select(timeoutMs);
+			selector.selectedKeys().clear();
+			if (!readAck()) return false;
+		}
+
+		// Binary Acks Are Read In Place; Java Serialized Ones Need A Heap Copy To Decode
+		// (A Damaged Ack Is Treated Like A Lost One)
+		if (SegmentCodec.isBinary(ackBuf)) {
+			if (SegmentCodec.typeOf(ackBuf) != SegmentType.Ack || !SegmentCodec.isValid(ackBuf, checksum)) return false;
+			ack.seqNum = SegmentCodec.seqNumOf(ackBuf);
+			ack.sackBits = SegmentCodec.sackBitsOf(ackBuf);
+			return true;
+		}
+		int length = ackBuf.remaining();
+		ackBuf.get(heapAckBuf, 0, length);
+		Segment ackSeg;
+		try {
+			ackSeg = SegmentCodec.decode(heapAckBuf, 0, length, checksum);
+		} catch (IOException e) {
+			return false;
+		}
+		if (ackSeg.getType() != SegmentType.Ack || !ackSeg.isValid()) return false;
+		ack.seqNum = ackSeg.getSeqNum();
+		ack.sackBits = SegmentCodec.parseSackBits(ackSeg.getPayLoad());
+		return true;
+	}
+
+	/* reads one pending datagram into ackBuf; false if there was none */
+	private boolean readAck() throws IOException {
+		ackBuf.clear();
+		try {
+			if (channel.read(ackBuf) <= 0) return false;
+		} catch (PortUnreachableException e) {
+			// The Server Is Not Listening (Yet); Treat It Like A Lost Ack
+			return false;
+		}
+		ackBuf.flip();
+		return true;
+	}
+
+	@Override
+	public void release(Wire wire) {
+		pool.add(wire);
+	}
+
+	@Override
+	public void close() throws IOException {
+		selector.close();
+	}
+}
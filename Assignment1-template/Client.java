@@ -9,7 +9,7 @@ import java.util.Scanner;
  * 
  * start client as:
  *
- *      java Client <host name> <port number> <CSV file name> <output file name> <patch size> <nm|wt>  
+ *      java Client <host name> <port number> <CSV file name> <output file name> <patch size> <nm|wt|sr|cc> [option=value ...]
  *
  * Where:
  *      host name is the address of the server
@@ -19,8 +19,28 @@ import java.util.Scanner;
  *      patch size is the size of the patch to be sent (number of readings to be stored in the segment payload)
  *      nm selects normal transfer mode 
  *      wt selects transfer with time out 
+ *      sr selects selective repeat transfer (sliding window of outstanding segments)
+ *      cc selects selective repeat under a congestion window (slow start, additive increase, halved on loss;
+ *      window=<n> caps it), received by a server in sr or mc mode
+ *      options are optional name=value settings, e.g. window=16 (number of outstanding segments in sr mode)
+ *      or total=unknown (start sending without counting the readings first; an End segment finishes the transfer)
+ *      or rto=fixed (keep the retransmission timeout at 1000 ms instead of adapting it to the measured round trip time)
+ *      or transport=nio (sr mode sends through a DatagramChannel with pooled direct buffers)
+ *      or ack=sack (sr mode Acks carry a cumulative ack point and a bitmap of the segments received beyond it)
+ *      or budget=<bytes|mtu> (pack readings into each Data segment until its datagram reaches the byte budget;
+ *      mtu is 1472 bytes, and the patch size still caps the number of readings)
+ *      or metrics=<ms> (print a JSON line of transfer metrics every <ms> milliseconds and at exit) and jmx=on (expose them over JMX)
+ *      or log=<debug|info|warn|error|off> (debug, the default, prints every segment; info only the transfer as a whole)
+ *      or stripes=<n> (sr mode splits the file into n stripes sent in parallel to the server's port and the next n - 1 ports)
+ *      or resume=on (the server keeps a checkpoint of the readings it has; started again, the client continues from it)
+ *      or checksum=<crc32c|crc32|none> (the checksum segments carry; crc32c is computed in hardware on current CPUs, none trusts the network)
+ *      or ingest=<serial|parallel|auto> (parse the CSV file on the fork/join pool; auto, the default, does so for files of 32 MB or more on several cores)
+ *      or pipeline=<n|on> (nm and wt modes read, build and encode up to n segments ahead on a second thread, 16 with on)
+ *      or delack=<n> (sr and cc modes with ack=sack: the server acks every n segments, or 25 ms after the first unacked one)
+ *      or tail=<ms> (sr and cc modes stream a growing CSV file, or standard input for the file name -, until stopped;
+ *      a patch is sent when it is full or its oldest reading has waited <ms>)
  *
- * Only specify one transfer mode. That is, either nm or wt   
+ * Only specify one transfer mode. That is, either nm, wt, sr or cc   
  */
 
 public class Client {
@@ -28,33 +48,88 @@ public class Client {
 	/* the main method  */
 	public static void main(String[] args) throws IOException, InterruptedException {
 		if (args.length < 6) {
-			System.err.println("Usage: java Client <host name> <port number> <CSV file name> <output file name> <batch Size> <nm|wt>");
+			System.err.println("Usage: java Client <host name> <port number> <CSV file name> <output file name> <batch Size> <nm|wt|sr|cc> [option=value ...]");
 			System.err.println("host name: is server IP address (e.g. 127.0.0.1) ");
 			System.err.println("port number: is a positive number in the range 1025 to 65535");
 			System.err.println("CSV file name: is the file that has the readings to send");
 			System.err.println("output file name: is the name of the output file");
 			System.err.println("Patch size: is the maximum size of the patch to be sent");
-			System.err.println("nm selects normal transfer|wt selects transfer with time out and retransmission");
+			System.err.println("nm selects normal transfer|wt selects transfer with time out and retransmission|sr selects selective repeat transfer|cc selects selective repeat with congestion control");
+			System.err.println("options: window=<n> sets the number of outstanding segments in sr mode (at least 1)");
+			System.err.println("         total=unknown skips counting the readings before sending (the transfer ends with an End segment)");
+			System.err.println("         rto=fixed keeps the retransmission timeout fixed instead of adapting it to the round trip time");
+			System.err.println("         transport=nio sends through a DatagramChannel with pooled direct buffers in sr mode");
+			System.err.println("         ack=sack makes sr Acks cumulative with a selective ack bitmap");
+			System.err.println("         budget=<bytes|mtu> fills each Data segment up to a datagram size instead of a fixed reading count");
+			System.err.println("         metrics=<ms> prints a JSON metrics snapshot every <ms> milliseconds, jmx=on exposes the metrics over JMX");
+			System.err.println("         log=<debug|info|warn|error|off> sets how much is printed (debug prints every segment)");
+			System.err.println("         stripes=<n> sends n parts of the file in parallel in sr mode (to port .. port + n - 1)");
+			System.err.println("         resume=on continues an interrupted transfer from the server's checkpoint");
+			System.err.println("         checksum=<crc32c|crc32|none> selects the segment checksum (default crc32)");
+			System.err.println("         ingest=<serial|parallel|auto> parses the CSV file on all cores (auto: files of 32 MB or more)");
+			System.err.println("         pipeline=<n|on> prepares up to n segments ahead on a second thread in nm and wt modes");
+			System.err.println("         delack=<n> lets the server ack every n segments in sr and cc modes (implies ack=sack)");
+			System.err.println("         tail=<ms> streams a growing CSV file (or stdin for -) in sr and cc modes, sending within <ms> of a reading");
 			System.exit(1);
 		}
 
-		//initialise the Protocol attributes
+		//initialise the Protocol attributes (options first, as transport=nio changes the socket)
+		try {
+			Protocol.instance.initOptions(args, 6);
+		} catch (IllegalArgumentException e) {
+			System.err.println("Usage error: " + e.getMessage());
+			System.exit(1);
+		}
+		Log.configure(Protocol.instance);
+		TransferMetrics.instance.start("client", Protocol.instance);
 		Protocol.instance.initProtocol(args[0], args[1], args[2], args[3], args[4]);  
 
-		System.out.println ("----------------------------------------------------");
-		System.out.println ("CLIENT: File "+ args[2] +" exists  " );
-		System.out.println ("----------------------------------------------------");
-		System.out.println ("----------------------------------------------------");
+		Log.info("----------------------------------------------------");
+		Log.info("CLIENT: File "+ args[2] +" exists  " );
+		Log.info("----------------------------------------------------");
+		Log.info("----------------------------------------------------");
 		String mode=args[5];
+		//the mode travels in the meta data so a multi-client server knows how to receive this transfer
+		Protocol.instance.setOption("mode", mode);
+		//a live stream (tail=<ms>) has no total to count, is one flow and cannot be resumed from a file offset
+		if (Protocol.instance.getIntOption("tail", 0) > 0) {
+			if (!Protocol.isSlidingMode(mode)) {
+				Log.warn("CLIENT: Ignoring Option tail (It Needs sr Or cc Mode)");
+				Protocol.instance.setOption("tail", "0");
+			} else {
+				if (Protocol.instance.getIntOption("stripes", 1) > 1 || Protocol.instance.isResumable()) {
+					Log.warn("CLIENT: Ignoring Options stripes And resume (A Live Stream Is Sent As One Flow From Its Start)");
+					Protocol.instance.setOption("stripes", "1");
+					Protocol.instance.setOption("resume", "off");
+				}
+				Protocol.instance.setOption("total", "unknown");
+				Log.info("CLIENT: Streaming " + args[2] + " Live, Sending Each Reading Within " + Protocol.instance.getIntOption("tail", 0) + "ms");
+			}
+		}
+		//striping splits the file over several sr flows, each sent from the start of its stripe
+		if (Protocol.instance.getIntOption("stripes", 1) > 1 && (!Protocol.isSlidingMode(mode) || Protocol.instance.isResumable())) {
+			Log.warn("CLIENT: Ignoring Option stripes (It Needs sr Or cc Mode And Cannot Be Resumed)");
+			Protocol.instance.setOption("stripes", "1");
+		}
+		//delayed Acks only work with the cumulative Acks of ack=sack, which stop-and-wait does not use
+		if (Protocol.instance.getIntOption("delack", 1) > 1) {
+			if (!Protocol.isSlidingMode(mode)) {
+				Log.warn("CLIENT: Ignoring Option delack (It Needs sr Or cc Mode)");
+				Protocol.instance.setOption("delack", "1");
+			} else if (!Protocol.SACK.equals(Protocol.instance.getOption("ack", ""))) {
+				Log.info("CLIENT: delack Uses ack=sack");
+				Protocol.instance.setOption("ack", Protocol.SACK);
+			}
+		}
 		Scanner sc=new Scanner(System.in);  
 		Client client = new Client();
 
 		/* Send meta data to the server */
-		System.out.println ("CLIENT: Sending meta data");
+		Log.info("CLIENT: Sending meta data");
 		Protocol.instance.sendMetadata() ; 
 
-		System.out.println("------------------------------------------------------------------");
-		System.out.println("------------------------------------------------------------------");
+		Log.info("------------------------------------------------------------------");
+		Log.info("------------------------------------------------------------------");
 
 		switch(mode)
 		{
@@ -68,11 +143,21 @@ public class Client {
 			client.sendWithTimeout(); 
 			break; 
 
+		//selective repeat mode (sliding window with per-segment timers)
+		case Protocol.SLIDING_MODE:
+			client.sendSlidingWindow();
+			break;
+
+		//congestion controlled mode (selective repeat with an AIMD congestion window)
+		case Protocol.CONGESTION_MODE:
+			client.sendSlidingWindow();
+			break;
+
 		default:
-			System.out.println("Error! mode is not recognised");
+			Log.error("Error! mode is not recognised");
 		} 
 
-		System.out.println("SENDER: File is sent\n");
+		Log.info("SENDER: File is sent\n");
 		sc.close();
 	}  
 
@@ -93,4 +178,15 @@ public class Client {
 			Protocol.instance.startTimeoutWithRetransmission();
 		}
 	}
+
+	/*The method used for SLIDING_MODE sr and CONGESTION_MODE cc */
+	public void sendSlidingWindow() {
+		if (Protocol.instance.getIntOption("tail", 0) > 0) {
+			SlidingWindowSender.stream(Protocol.instance);
+		} else if (Protocol.instance.getIntOption("stripes", 1) > 1) {
+			StripedSender.send(Protocol.instance);
+		} else {
+			SlidingWindowSender.send(Protocol.instance);
+		}
+	}
 }
@@ -0,0 +1,279 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/*
+ * Single-pass reader over the client's CSV file.
+ * The file is memory-mapped in windows of MAP_WINDOW bytes. The reader tracks the byte offset of the next
+ * line, so the position of any patch can be saved and the reader can seek straight back to it (for a
+ * retransmission or a resumed transfer) without rereading the lines in front of it.
+ * A cursor can also be limited to a byte range of the file (one stripe of a striped transfer).
+ *
+ * A parallel cursor (ingest=parallel, or ingest=auto, the default, for a file of PARALLEL_THRESHOLD bytes or
+ * more on a machine with several cores) has its lines parsed ahead on the fork/join pool by a
+ * ParallelCsvParser and only cuts the parsed readings into patches itself. The patches, their offsets and the
+ * malformed line reports are the same as those of a serial cursor.
+ */
+public class CsvCursor implements Closeable {
+
+	static final int MAP_WINDOW = 64 * 1024 * 1024;   // bytes of the file mapped at a time (files can be larger than one mapping)
+	static final long PARALLEL_THRESHOLD = 32L << 20; // ingest=auto parses files of at least this many bytes in parallel
+
+	/* a patch of readings read from the file, with the byte range it came from */
+	public static class Patch {
+		final String payload;   // readings joined by ';'
+		final int readings;     // number of readings in the payload
+		final long offset;      // byte offset of the first line of the patch
+		final long end;         // byte offset just past the last line of the patch
+
+		Patch(String payload, int readings, long offset, long end) {
+			this.payload = payload;
+			this.readings = readings;
+			this.offset = offset;
+			this.end = end;
+		}
+	}
+
+	private final FileChannel channel;
+	private final long fileSize;    // where reading stops: the file size, or the end of the range
+	private MappedByteBuffer map;   // the currently mapped window
+	private long mapStart;          // file offset of map position 0
+	private long position;          // file offset of the next line to read
+	private final boolean parallel; // lines are parsed ahead by a ParallelCsvParser
+	private ParallelCsvParser parser; // started from position on the first read (parallel only)
+	private ParallelCsvParser.Leaf leaf; // the parsed lines being read, and the next reading in them
+	private int leafIndex;
+	private int invalidIndex;       // the next malformed line of the leaf to report
+	private long readingStart;      // file offset of the line of the reading nextParsed returned last
+
+	/* constructor */
+	public CsvCursor(File file) throws IOException {
+		this(file, 0, Long.MAX_VALUE, false);
+	}
+
+	/* constructor for the lines in [start, end) of the file (both offsets at line starts, see splitAtLines) */
+	public CsvCursor(File file, long start, long end) throws IOException {
+		this(file, start, end, false);
+	}
+
+	/* constructor for the lines in [start, end) of the file, parsed ahead on the fork/join pool if parallel */
+	public CsvCursor(File file, long start, long end, boolean parallel) throws IOException {
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		this.fileSize = Math.min(end, channel.size());
+		this.position = Math.min(start, this.fileSize);
+		this.parallel = parallel;
+	}
+
+	/* opens the protocol's CSV file, or the lines in [start, end) of it, parsed as the ingest=<serial|parallel|auto> option says */
+	static CsvCursor open(Protocol protocol) throws IOException {
+		return open(protocol, 0, Long.MAX_VALUE);
+	}
+	static CsvCursor open(Protocol protocol, long start, long end) throws IOException {
+		File file = protocol.getInputFile();
+		String ingest = protocol.getOption("ingest", "auto");
+		boolean parallel = "parallel".equals(ingest)
+				|| ("auto".equals(ingest) && file.length() >= PARALLEL_THRESHOLD && Runtime.getRuntime().availableProcessors() > 1);
+		return new CsvCursor(file, start, end, parallel);
+	}
+
+	/* reads up to maxReadings valid readings; returns null at the end of the file */
+	public Patch readPatch(int maxReadings) throws IOException {
+		return readPatch(maxReadings, Integer.MAX_VALUE);
+	}
+
+	/* 
+	 * reads up to maxReadings valid readings, stopping before the payload would exceed maxPayloadBytes
+	 * (a reading is never split, so a single reading larger than the budget is sent on its own);
+	 * returns null at the end of the file
+	 */
+	public Patch readPatch(int maxReadings, int maxPayloadBytes) throws IOException {
+		StringBuilder payloadBuilder = new StringBuilder();
+		long offset = position;
+		int linesRead = 0;
+		int payloadBytes = 0;
+		String line;
+		while (linesRead < maxReadings) {
+			long lineStart = position;
+			String reading;
+			if (parallel) {
+				if ((reading = nextParsed()) == null) break;
+			} else {
+				if ((line = readLine()) == null) break;
+				reading = Protocol.formatReading(line);
+				if (reading == null) continue;
+			}
+
+			int readingBytes = utf8Length(reading) + (linesRead > 0 ? 1 : 0);
+			if (linesRead > 0 && payloadBytes + readingBytes > maxPayloadBytes) {
+				// Leave The Reading For The Next Patch
+				position = parallel ? readingStart : lineStart;
+				if (parallel) leafIndex--;
+				break;
+			}
+			if (linesRead > 0) payloadBuilder.append(';');
+			payloadBuilder.append(reading);
+			payloadBytes += readingBytes;
+			linesRead++;
+		}
+		if (linesRead == 0) return null;
+		return new Patch(payloadBuilder.toString(), linesRead, offset, position);
+	}
+
+	/* the next reading parsed by the parallel parser, reporting the malformed lines in front of it; null at the end */
+	private String nextParsed() throws IOException {
+		while (leaf == null || leafIndex == leaf.count) {
+			if (leaf != null) {
+				reportInvalid(leaf.end);
+				position = leaf.end;
+			}
+			if (parser == null) parser = new ParallelCsvParser(channel, position, fileSize);
+			leaf = parser.next();
+			leafIndex = 0;
+			invalidIndex = 0;
+			if (leaf == null) return null;
+		}
+		reportInvalid(leaf.ends[leafIndex]);
+		readingStart = position;
+		position = leaf.ends[leafIndex];
+		return leaf.readings[leafIndex++];
+	}
+
+	/* reports the malformed lines of the leaf up to the offset and moves past them, as the serial reader does */
+	private void reportInvalid(long upTo) {
+		while (invalidIndex < leaf.invalid.size() && leaf.invalidEnds[invalidIndex] <= upTo) {
+			Log.warn("CLIENT: Invalid CSV Line: " + leaf.invalid.get(invalidIndex));
+			position = leaf.invalidEnds[invalidIndex++];
+		}
+	}
+
+	/* the number of bytes the string takes in UTF-8, without encoding it */
+	static int utf8Length(String s) {
+		int bytes = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) bytes++;
+			else if (c < 0x800) bytes += 2;
+			else if (Character.isHighSurrogate(c)) { bytes += 4; i++; }
+			else bytes += 3;
+		}
+		return bytes;
+	}
+
+	/* returns the next line without its line terminator, or null at the end of the file */
+	public String readLine() throws IOException {
+		while (position < fileSize) {
+			remapIfNeeded();
+			int start = (int) (position - mapStart);
+			int limit = map.limit();
+			int i = start;
+			while (i < limit && map.get(i) != '\n') i++;
+
+			// The Line Runs Past The Mapped Window: Remap From Its Start And Scan Again
+			if (i == limit && mapStart + limit < fileSize) {
+				if (start == 0) throw new IOException("CSV Line Longer Than " + MAP_WINDOW + " Bytes At Offset " + position);
+				map = null;
+				continue;
+			}
+
+			int end = i;
+			if (end > start && map.get(end - 1) == '\r') end--;
+			byte[] bytes = new byte[end - start];
+			map.get(start, bytes);
+			position = mapStart + Math.min(i + 1, limit);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+		return null;
+	}
+
+	/* maps the window starting at the current position unless it is already mapped */
+	private void remapIfNeeded() throws IOException {
+		if (map != null && position >= mapStart && position < mapStart + map.limit()) return;
+		mapStart = position;
+		map = channel.map(FileChannel.MapMode.READ_ONLY, mapStart, Math.min(MAP_WINDOW, fileSize - mapStart));
+	}
+
+	/* counts the lines in the file by scanning mapped windows for '\n' (a last line without one also counts) */
+	public static long countLines(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			long lines = 0;
+			byte last = '\n';
+			for (long start = 0; start < size; start += MAP_WINDOW) {
+				MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(MAP_WINDOW, size - start));
+				int limit = window.limit();
+				for (int i = 0; i < limit; i++) {
+					if (window.get(i) == '\n') lines++;
+				}
+				last = window.get(limit - 1);
+			}
+			return last == '\n' ? lines : lines + 1;
+		}
+	}
+
+	/* 
+	 * splits the file into parts byte ranges of about equal size, each starting at a line start;
+	 * returns parts + 1 offsets, range i being [bounds[i], bounds[i + 1]) (a range may be empty in a small file)
+	 */
+	public static long[] splitAtLines(File file, int parts) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			long[] bounds = new long[parts + 1];
+			bounds[parts] = size;
+			ByteBuffer buf = ByteBuffer.allocate(8192);
+			for (int i = 1; i < parts; i++) {
+				// Move Each Cut Forward To Just After The Next '\n'
+				long cut = Math.max(bounds[i - 1], size * i / parts);
+				if (cut > 0 && cut < size) cut = nextLineStart(channel, cut - 1, size, buf);
+				bounds[i] = cut;
+			}
+			return bounds;
+		}
+	}
+
+	/* the offset just after the first '\n' at or after from (or size if there is none) */
+	static long nextLineStart(FileChannel channel, long from, long size, ByteBuffer buf) throws IOException {
+		long pos = from;
+		while (pos < size) {
+			buf.clear();
+			int n = channel.read(buf, pos);
+			if (n <= 0) break;
+			for (int i = 0; i < n; i++) {
+				if (buf.get(i) == '\n') return pos + i + 1;
+			}
+			pos += n;
+		}
+		return size;
+	}
+
+	/* moves the reader to a byte offset previously returned by position() or a Patch */
+	public void seek(long offset) {
+		if (offset < 0 || offset > fileSize) throw new IllegalArgumentException("Offset " + offset + " Is Outside The File");
+		if (parallel && offset != position) {
+			// The Lines Parsed Ahead Are From The Old Position
+			if (parser != null) parser.cancel();
+			parser = null;
+			leaf = null;
+		}
+		position = offset;
+	}
+
+	/* getter methods */
+	public long position() {
+		return position;
+	}
+	public long size() {
+		return fileSize;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (parser != null) parser.cancel();
+		map = null;
+		channel.close();
+	}
+}
@@ -0,0 +1,232 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Runs a transfer through the ImpairmentProxy once per impairment profile and reports, for each run,
+ * whether every reading arrived, the completion time and the goodput (CSV bytes delivered per second).
+ *
+ * The server and the client run as separate processes (as they would normally) on free local ports,
+ * the server in a scratch directory where it writes its output file, and the proxy in this process.
+ * Every run of a profile uses the same seed, so two builds of the protocol can be compared run for run.
+ *
+ * To run: java ImpairmentBench <CSV file name> <patch size> <nm|wt|sr|cc> [option=value ...]
+ *      profiles=<a,b,...> the profiles to run (default all of ImpairmentProxy.PROFILES)
+ *      runs=<n> runs per profile (default 1), seed=<n> the proxy seed (default 1),
+ *      limit=<s> seconds before a run is given up (default 60)
+ *      any other option is passed to the client (e.g. window=16, ack=sack, codec=bin)
+ *
+ * The profiles that flip bits (corrupt, hostile) need codec=bin. The proxy flips any bit of a datagram. Only
+ * the binary header is covered by the checksum. A flipped seqNum or size in a Java serialized segment goes
+ * unnoticed, so such a run would measure a transfer that delivered wrong readings. Without codec=bin those
+ * profiles are left out of the default list, and asking for one by name is a usage error.
+ */
+public class ImpairmentBench {
+
+	static final int READY_TIMEOUT = 10;   // seconds to wait for the server to start listening
+
+	/* the outcome of one run */
+	static class Result {
+		String profile;
+		int run;
+		String status;          // OK, INCOMPLETE (readings missing) or TIMEOUT
+		double seconds;
+		long readings;
+		String proxy;           // what the proxy did
+	}
+
+	private final File csvFile;
+	private final String patchSize;
+	private final String mode;
+	private final List<String> clientOptions;
+	private final long seed;
+	private final int limitSeconds;
+	private final long expectedReadings;
+
+	/* constructor */
+	public ImpairmentBench(File csvFile, String patchSize, String mode, List<String> clientOptions, long seed, int limitSeconds) throws IOException {
+		this.csvFile = csvFile;
+		this.patchSize = patchSize;
+		this.mode = mode;
+		this.clientOptions = clientOptions;
+		this.seed = seed;
+		this.limitSeconds = limitSeconds;
+		this.expectedReadings = CsvCursor.countLines(csvFile);
+	}
+
+	/* runs one transfer through a proxy with the given profile */
+	public Result run(String profile, int run) throws IOException, InterruptedException {
+		Result result = new Result();
+		result.profile = profile;
+		result.run = run;
+
+		File dir = Files.createTempDirectory("impairment-" + profile).toFile();
+		int serverPort = freePort();
+		Process server = startServer(dir, serverPort);
+
+		Map<String, String> proxyOptions = new HashMap<>();
+		proxyOptions.put("profile", profile);
+		proxyOptions.put("seed", String.valueOf(seed));
+		ImpairmentProxy proxy = new ImpairmentProxy(0, new InetSocketAddress("127.0.0.1", serverPort), proxyOptions);
+		Thread proxyThread = new Thread(proxy, "proxy-" + profile);
+		proxyThread.setDaemon(true);
+		proxyThread.start();
+
+		List<String> command = java("Client", "127.0.0.1", String.valueOf(proxy.getPort()), csvFile.getAbsolutePath(), "out.txt", patchSize, mode, "log=warn");
+		command.addAll(clientOptions);
+		long start = System.nanoTime();
+		Process client = new ProcessBuilder(command).directory(dir).redirectErrorStream(true)
+				.redirectOutput(new File(dir, "client.log")).start();
+		boolean finished = client.waitFor(limitSeconds, TimeUnit.SECONDS);
+		result.seconds = (System.nanoTime() - start) / 1e9;
+		if (!finished) client.destroyForcibly();
+
+		// The Server Lingers After The Last Reading, So Give It A Moment Before Stopping It
+		if (!server.waitFor(Protocol.LINGER_TIMEOUT * 2, TimeUnit.MILLISECONDS)) server.destroyForcibly();
+		proxy.close();
+
+		result.readings = countReadings(new File(dir, "out.txt"));
+		result.status = !finished ? "TIMEOUT" : result.readings == expectedReadings ? "OK" : "INCOMPLETE";
+		result.proxy = proxy.summary();
+		return result;
+	}
+
+	/* starts the server in dir and waits until it is listening */
+	private Process startServer(File dir, int port) throws IOException, InterruptedException {
+		String serverMode = Protocol.TIMEOUT_MODE.equals(mode) ? Protocol.LOST_MODE : Protocol.isSlidingMode(mode) ? Protocol.SLIDING_MODE : mode;
+		Process server = new ProcessBuilder(java("Server", String.valueOf(port), serverMode, "log=info"))
+				.directory(dir).redirectErrorStream(true).start();
+
+		// The Loss Is Simulated By The Proxy, Not By The Server
+		if (Protocol.LOST_MODE.equals(serverMode) || Protocol.SLIDING_MODE.equals(serverMode)) {
+			OutputStream stdin = server.getOutputStream();
+			stdin.write("0\n".getBytes(StandardCharsets.US_ASCII));
+			stdin.flush();
+		}
+
+		// Keep Reading The Server's Output Into Its Log, Noting When It Is Ready
+		CountDownLatch ready = new CountDownLatch(1);
+		Thread reader = new Thread(() -> {
+			try (BufferedReader in = new BufferedReader(new InputStreamReader(server.getInputStream(), StandardCharsets.UTF_8));
+					BufferedWriter log = Files.newBufferedWriter(new File(dir, "server.log").toPath(), StandardCharsets.UTF_8)) {
+				String line;
+				while ((line = in.readLine()) != null) {
+					if (line.contains("Ready to receive")) ready.countDown();
+					log.write(line);
+					log.newLine();
+					log.flush();
+				}
+			} catch (IOException e) {
+				// The Server Was Stopped
+			}
+		}, "server-output");
+		reader.setDaemon(true);
+		reader.start();
+		if (!ready.await(READY_TIMEOUT, TimeUnit.SECONDS)) throw new IOException("Server Did Not Start (See " + dir + ")");
+		return server;
+	}
+
+	/* the command that runs a class of this program in a new JVM */
+	private static List<String> java(String mainClass, String... args) {
+		List<String> command = new ArrayList<>();
+		command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(mainClass);
+		command.addAll(Arrays.asList(args));
+		return command;
+	}
+
+	/* a local UDP port that is free right now */
+	private static int freePort() throws IOException {
+		try (DatagramSocket socket = new DatagramSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+
+	/* the readings in the server's output file (every line except the segment headers and blank lines) */
+	static long countReadings(File outputFile) throws IOException {
+		if (!outputFile.exists()) return 0;
+		try (BufferedReader in = Files.newBufferedReader(outputFile.toPath(), StandardCharsets.UTF_8)) {
+			return in.lines().filter(line -> !line.isEmpty() && !line.startsWith("Segment")).count();
+		}
+	}
+
+	/* the profiles a run without codec=bin can check: bit flipping ones are dropped, or a usage error if asked for */
+	private static String[] withoutCorruption(String[] profiles, boolean chosen) {
+		List<String> checked = new ArrayList<>();
+		List<String> dropped = new ArrayList<>();
+		for (String profile : profiles) {
+			if (ImpairmentProxy.PROFILES.containsKey(profile) && ImpairmentProxy.corrupts(profile)) {
+				dropped.add(profile);
+			} else {
+				checked.add(profile);
+			}
+		}
+		if (dropped.isEmpty()) return profiles;
+		String reason = "Profile(s) " + String.join(",", dropped) + " Flip Header Bits, Which Only codec=bin Detects";
+		if (chosen) {
+			System.err.println("Usage error: " + reason + " (Add codec=bin)");
+			System.exit(1);
+		}
+		System.out.println("BENCH: Skipping " + reason + " (Add codec=bin To Run Them)");
+		return checked.toArray(new String[0]);
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length < 3) {
+			System.err.println("Usage: java ImpairmentBench <CSV file name> <patch size> <nm|wt|sr|cc> [option=value ...]");
+			System.err.println("options: profiles=<a,b,...> (default " + String.join(",", ImpairmentProxy.PROFILES.keySet()) + ")");
+			System.err.println("         runs=<n> (default 1) seed=<n> (default 1) limit=<seconds per run> (default 60)");
+			System.err.println("         any other option=value is passed to the client");
+			System.exit(1);
+		}
+		Map<String, String> options = new HashMap<>();
+		List<String> clientOptions = new ArrayList<>();
+		for (int i = 3; i < args.length; i++) {
+			int eq = args[i].indexOf('=');
+			if (eq <= 0) continue;
+			String key = args[i].substring(0, eq);
+			if (key.equals("profiles") || key.equals("runs") || key.equals("seed") || key.equals("limit") || key.equals("log")) {
+				options.put(key, args[i].substring(eq + 1));
+			} else {
+				clientOptions.add(args[i]);
+			}
+		}
+		// The Table Is The Output; Only Problems Are Logged
+		Protocol.instance.setOption("log", options.getOrDefault("log", "warn"));
+		Log.configure(Protocol.instance);
+
+		String[] profiles = options.getOrDefault("profiles", String.join(",", ImpairmentProxy.PROFILES.keySet())).split(",");
+		if (!clientOptions.contains("codec=" + SegmentCodec.BINARY)) profiles = withoutCorruption(profiles, options.containsKey("profiles"));
+		int runs = Integer.parseInt(options.getOrDefault("runs", "1"));
+		File csvFile = new File(args[0]);
+		ImpairmentBench bench = new ImpairmentBench(csvFile, args[1], args[2], clientOptions,
+				Long.parseLong(options.getOrDefault("seed", "1")), Integer.parseInt(options.getOrDefault("limit", "60")));
+
+		System.out.println(String.format(Locale.ROOT, "%-10s %4s %-10s %9s %9s %12s  %s", "Profile", "Run", "Status", "Readings", "Seconds", "Goodput KB/s", "Proxy"));
+		for (String profile : profiles) {
+			for (int run = 1; run <= runs; run++) {
+				Result r = bench.run(profile, run);
+				double goodput = r.status.equals("OK") ? csvFile.length() / 1024.0 / r.seconds : 0;
+				System.out.println(String.format(Locale.ROOT, "%-10s %4d %-10s %9d %9.2f %12.1f  %s", r.profile, r.run, r.status, r.readings, r.seconds, goodput, r.proxy));
+			}
+		}
+		Log.flush();
+	}
+}
@@ -0,0 +1,357 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * A local UDP proxy that sits between Client and Server and impairs the traffic in both directions:
+ * loss, delay with jitter, reordering, duplication and bit corruption (which the CRC in Segment exists to catch).
+ *
+ * The client sends to the proxy's port instead of the server's. Every client address gets its own socket
+ * towards the server, so a multi-client server still sees one address per client. All random choices come
+ * from generators seeded with seed=<n>, so a profile impairs the same datagrams on every run.
+ *
+ * To run: java ImpairmentProxy <listen port> <server host> <server port> [option=value ...]
+ *      profile=<name> starts from a named profile (see PROFILES), which the other options then override
+ *      loss=<p> drops a datagram, duplicate=<p> sends it twice, corrupt=<p> flips one bit in it
+ *      delay=<ms> and jitter=<ms> delay each datagram by delay +- jitter
+ *      reorder=<p> holds a datagram back by a further hold=<ms> (default 10), so later ones overtake it
+ *      up.<option> or down.<option> sets an option for one direction only (up is client to server)
+ *      spare=<n> lets the first n datagrams of each client through unimpaired (default 1, because the
+ *      Meta segment is sent only once), seed=<n> seeds the random choices (default 1)
+ */
+public class ImpairmentProxy implements Runnable {
+
+	// Named Profiles For Repeatable Runs (The Values Apply To Both Directions Unless Prefixed)
+	static final Map<String, String> PROFILES = new LinkedHashMap<>();
+	static {
+		PROFILES.put("clean", "");
+		PROFILES.put("lossy", "loss=0.05");
+		PROFILES.put("delay", "delay=20,jitter=10");
+		PROFILES.put("reorder", "delay=2,reorder=0.1,hold=15");
+		PROFILES.put("duplicate", "duplicate=0.1");
+		PROFILES.put("corrupt", "corrupt=0.05");
+		PROFILES.put("hostile", "loss=0.05,delay=10,jitter=5,reorder=0.05,duplicate=0.02,corrupt=0.02");
+	}
+
+	static final String UP = "up";       // client to server
+	static final String DOWN = "down";   // server to client
+	static final int RELAY_IDLE_TIMEOUT = Protocol.IDLE_TIMEOUT * 2;   // a client path quiet for this long is closed
+
+	/* the impairments applied to one direction, with counters of what was done */
+	static class Impairment {
+		final String direction;
+		final double loss, duplicate, corrupt, reorder;
+		final int delay, jitter, hold;
+		final Random random;
+		final LongAdder forwarded = new LongAdder();
+		final LongAdder dropped = new LongAdder();
+		final LongAdder duplicated = new LongAdder();
+		final LongAdder corrupted = new LongAdder();
+		final LongAdder reordered = new LongAdder();
+
+		Impairment(String direction, Map<String, String> options, long seed) {
+			this.direction = direction;
+			this.loss = Double.parseDouble(option(options, direction, "loss", "0"));
+			this.duplicate = Double.parseDouble(option(options, direction, "duplicate", "0"));
+			this.corrupt = Double.parseDouble(option(options, direction, "corrupt", "0"));
+			this.reorder = Double.parseDouble(option(options, direction, "reorder", "0"));
+			this.delay = Integer.parseInt(option(options, direction, "delay", "0"));
+			this.jitter = Integer.parseInt(option(options, direction, "jitter", "0"));
+			this.hold = Integer.parseInt(option(options, direction, "hold", "10"));
+			this.random = new Random(seed);
+		}
+
+		/* a direction-specific value (up.loss) wins over the shared one (loss) */
+		private static String option(Map<String, String> options, String direction, String key, String defaultValue) {
+			return options.getOrDefault(direction + "." + key, options.getOrDefault(key, defaultValue));
+		}
+
+		/* adds these counters to a running total */
+		void addTo(Impairment total) {
+			total.forwarded.add(forwarded.sum());
+			total.dropped.add(dropped.sum());
+			total.duplicated.add(duplicated.sum());
+			total.corrupted.add(corrupted.sum());
+			total.reordered.add(reordered.sum());
+		}
+
+		@Override
+		public String toString() {
+			return direction + ": forwarded " + forwarded.sum() + ", dropped " + dropped.sum() + ", duplicated " + duplicated.sum()
+					+ ", corrupted " + corrupted.sum() + ", reordered " + reordered.sum();
+		}
+	}
+
+	/* a datagram waiting for its delay to pass */
+	private static class Pending implements Delayed {
+		private static final AtomicLong order = new AtomicLong();   // keeps equal release times in arrival order
+		final byte[] data;
+		final DatagramSocket via;
+		final SocketAddress to;
+		final Impairment impairment;   // the direction, counted when the datagram is finally sent
+		final long releaseAt;
+		final long sequence = order.getAndIncrement();
+
+		Pending(byte[] data, DatagramSocket via, SocketAddress to, Impairment impairment, long releaseAt) {
+			this.data = data;
+			this.via = via;
+			this.to = to;
+			this.impairment = impairment;
+			this.releaseAt = releaseAt;
+		}
+
+		@Override
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(releaseAt - System.nanoTime(), TimeUnit.NANOSECONDS);
+		}
+
+		@Override
+		public int compareTo(Delayed other) {
+			Pending that = (Pending) other;
+			int byTime = Long.compare(releaseAt, that.releaseAt);
+			return byTime != 0 ? byTime : Long.compare(sequence, that.sequence);
+		}
+	}
+
+	/* one client's path to the server: its own socket towards the server and the thread relaying the replies */
+	private class Relay implements Runnable {
+		final SocketAddress client;
+		final DatagramSocket upstream;
+		final Impairment down;
+		volatile long lastActivity = System.nanoTime();
+		int spared;                                   // datagrams let through unimpaired so far (up direction)
+
+		Relay(SocketAddress client, long seed) throws SocketException {
+			this.client = client;
+			this.upstream = new DatagramSocket();
+			this.upstream.setSoTimeout(RELAY_IDLE_TIMEOUT);
+			this.down = new Impairment(DOWN, options, seed);
+		}
+
+		@Override
+		public void run() {
+			byte[] buf = new byte[Protocol.MAX_DATAGRAM_SIZE];
+			DatagramPacket packet = new DatagramPacket(buf, buf.length);
+			try {
+				while (!upstream.isClosed()) {
+					packet.setLength(buf.length);
+					try {
+						upstream.receive(packet);
+					} catch (SocketTimeoutException e) {
+						// Close The Path Of A Client That Has Gone Quiet
+						if (System.nanoTime() - lastActivity > TimeUnit.MILLISECONDS.toNanos(RELAY_IDLE_TIMEOUT)) break;
+						continue;
+					}
+					lastActivity = System.nanoTime();
+					impair(down, Arrays.copyOf(buf, packet.getLength()), listener, client, false);
+				}
+			} catch (IOException e) {
+				if (!upstream.isClosed()) Log.error("PROXY: Error Relaying To " + client + ": " + e.getMessage());
+			} finally {
+				upstream.close();
+				relays.remove(client, this);
+				totals(down);
+			}
+		}
+	}
+
+	private final DatagramSocket listener;          // the port clients send to
+	private final SocketAddress server;
+	private final Map<String, String> options;
+	private final Impairment up;
+	private final long seed;
+	private final int spare;
+	private final Map<SocketAddress, Relay> relays = new ConcurrentHashMap<>();
+	private final DelayQueue<Pending> delayed = new DelayQueue<>();
+	private final Impairment downTotals;             // the down counters of every closed relay, for the summary
+	private int relayCount;
+
+	/* constructor; the options are the name=value settings described above */
+	public ImpairmentProxy(int listenPort, SocketAddress server, Map<String, String> options) throws IOException {
+		this.options = withProfile(options);
+		this.listener = new DatagramSocket(listenPort);
+		this.server = server;
+		this.seed = Long.parseLong(this.options.getOrDefault("seed", "1"));
+		this.spare = Integer.parseInt(this.options.getOrDefault("spare", "1"));
+		this.up = new Impairment(UP, this.options, seed);
+		this.downTotals = new Impairment(DOWN, this.options, seed);
+	}
+
+	/* the named profile's settings, overridden by the explicit options */
+	static Map<String, String> withProfile(Map<String, String> options) {
+		Map<String, String> merged = new HashMap<>();
+		String profile = options.get("profile");
+		if (profile != null) {
+			String spec = PROFILES.get(profile);
+			if (spec == null) throw new IllegalArgumentException("Unknown Profile " + profile + " (Expected One Of " + PROFILES.keySet() + ")");
+			for (String setting : spec.split(",")) {
+				int eq = setting.indexOf('=');
+				if (eq > 0) merged.put(setting.substring(0, eq), setting.substring(eq + 1));
+			}
+		}
+		merged.putAll(options);
+		return merged;
+	}
+
+	/* true if the named profile flips bits in either direction */
+	static boolean corrupts(String profile) {
+		for (Map.Entry<String, String> setting : withProfile(Map.of("profile", profile)).entrySet()) {
+			String key = setting.getKey();
+			if ((key.equals("corrupt") || key.endsWith(".corrupt")) && Double.parseDouble(setting.getValue()) > 0) return true;
+		}
+		return false;
+	}
+
+	/* the port clients should send to */
+	public int getPort() {
+		return listener.getLocalPort();
+	}
+
+	/* relays datagrams from the clients to the server until closed */
+	@Override
+	public void run() {
+		Thread sender = new Thread(this::sendDelayed, "proxy-delay");
+		sender.setDaemon(true);
+		sender.start();
+
+		byte[] buf = new byte[Protocol.MAX_DATAGRAM_SIZE];
+		DatagramPacket packet = new DatagramPacket(buf, buf.length);
+		try {
+			while (true) {
+				packet.setLength(buf.length);
+				listener.receive(packet);
+				SocketAddress client = packet.getSocketAddress();
+				Relay relay = relays.get(client);
+				if (relay == null) {
+					relay = new Relay(client, seed + 1 + relayCount++);
+					relays.put(client, relay);
+					Thread thread = new Thread(relay, "proxy-" + client);
+					thread.setDaemon(true);
+					thread.start();
+					Log.info("PROXY: New Client " + client);
+				}
+				relay.lastActivity = System.nanoTime();
+				boolean spared = relay.spared < spare;
+				if (spared) relay.spared++;
+				impair(up, Arrays.copyOf(buf, packet.getLength()), relay.upstream, server, spared);
+			}
+		} catch (IOException e) {
+			if (!listener.isClosed()) Log.error("PROXY: Error: " + e.getMessage());
+		}
+	}
+
+	/* applies the direction's impairments to one datagram and sends what is left of it, now or after its delay */
+	private void impair(Impairment impairment, byte[] data, DatagramSocket via, SocketAddress to, boolean spared) throws IOException {
+		if (spared) {
+			send(via, to, data, impairment);
+			return;
+		}
+		Random random = impairment.random;
+		if (random.nextDouble() < impairment.loss) {
+			impairment.dropped.increment();
+			return;
+		}
+		int copies = 1;
+		if (random.nextDouble() < impairment.duplicate) {
+			impairment.duplicated.increment();
+			copies = 2;
+		}
+		for (int i = 0; i < copies; i++) {
+			byte[] copy = i == 0 ? data : data.clone();
+			if (copy.length > 0 && random.nextDouble() < impairment.corrupt) {
+				int bit = random.nextInt(copy.length * 8);
+				copy[bit >>> 3] ^= (byte) (1 << (bit & 7));
+				impairment.corrupted.increment();
+			}
+			long delayMs = impairment.delay;
+			if (impairment.jitter > 0) delayMs += random.nextInt(2 * impairment.jitter + 1) - impairment.jitter;
+			if (random.nextDouble() < impairment.reorder) {
+				delayMs += impairment.hold;
+				impairment.reordered.increment();
+			}
+			if (delayMs <= 0 && delayed.isEmpty()) {
+				send(via, to, copy, impairment);
+			} else {
+				delayed.add(new Pending(copy, via, to, impairment, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMs))));
+			}
+		}
+	}
+
+	/* the delay thread: sends each delayed datagram once its time has come */
+	private void sendDelayed() {
+		while (true) {
+			try {
+				Pending pending = delayed.take();
+				send(pending.via, pending.to, pending.data, pending.impairment);
+			} catch (InterruptedException e) {
+				return;
+			} catch (IOException e) {
+				// The Relay Was Closed While The Datagram Waited; It Is Lost Like Any Other
+			}
+		}
+	}
+
+	private void send(DatagramSocket via, SocketAddress to, byte[] data, Impairment impairment) throws IOException {
+		via.send(new DatagramPacket(data, data.length, to));
+		impairment.forwarded.increment();
+	}
+
+	/* adds a closed relay's down counters to the totals */
+	private synchronized void totals(Impairment down) {
+		down.addTo(downTotals);
+	}
+
+	/* what the proxy did in each direction so far (datagrams still delayed are not counted as forwarded yet) */
+	public synchronized String summary() {
+		Impairment down = new Impairment(DOWN, options, seed);
+		downTotals.addTo(down);
+		for (Relay relay : relays.values()) relay.down.addTo(down);
+		return up + "; " + down;
+	}
+
+	/* stops relaying */
+	public void close() {
+		listener.close();
+		for (Relay relay : relays.values()) relay.upstream.close();
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 3) {
+			System.err.println("Usage: java ImpairmentProxy <listen port> <server host> <server port> [option=value ...]");
+			System.err.println("options: profile=<" + String.join("|", PROFILES.keySet()) + "> starts from a named profile");
+			System.err.println("         loss=<p> duplicate=<p> corrupt=<p> reorder=<p> hold=<ms> delay=<ms> jitter=<ms>");
+			System.err.println("         up.<option>=... or down.<option>=... for one direction only (up is client to server)");
+			System.err.println("         spare=<n> (first datagrams of each client left alone, default 1) seed=<n> (default 1)");
+			System.exit(1);
+		}
+		Protocol.instance.initOptions(args, 3);
+		Log.configure(Protocol.instance);
+		Map<String, String> options = new HashMap<>();
+		for (int i = 3; i < args.length; i++) {
+			int eq = args[i].indexOf('=');
+			if (eq > 0) options.put(args[i].substring(0, eq), args[i].substring(eq + 1));
+		}
+
+		InetSocketAddress server = new InetSocketAddress(InetAddress.getByName(args[1]), Integer.parseInt(args[2]));
+		ImpairmentProxy proxy = new ImpairmentProxy(Integer.parseInt(args[0]), server, options);
+		Log.atExit(() -> Log.info("PROXY: " + proxy.summary()));
+		Log.info("PROXY: Relaying Port " + proxy.getPort() + " To " + server + " (" + proxy.options + ")");
+		proxy.run();
+	}
+}
@@ -0,0 +1,267 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * The indexed binary output format (format=indexed on the server) and the reader that queries it.
+ *
+ * Layout (big-endian):
+ *      header   MAGIC, VERSION
+ *      blocks   one per BLOCK_ROWS readings (the last may hold fewer), each stored by column:
+ *               rows, sensor codes (int[rows]), timestamps (long[rows]), then each value column (float[rows])
+ *      footer   the sensorId dictionary (count, then a length-prefixed UTF-8 id per code) and the block
+ *               index (count, then per block: offset, rows, min and max timestamp, min and max sensor
+ *               code, and a 64 bit mask of the sensor codes in it, bit 63 standing for every code >= 63)
+ *      trailer  footer offset (long), MAGIC
+ *
+ * A query reads the footer and maps only the blocks whose statistics can match it, so a lookup for one
+ * sensor over a time range skips every block of other sensors or other times without reading it.
+ */
+public class IndexedReadingFile implements Closeable {
+
+	static final int MAGIC = 0x52444758;        // "RDGX"
+	static final int VERSION = 1;
+	static final int BLOCK_ROWS = 4096;         // readings per block
+	static final int HEADER_BYTES = 8;
+	static final int TRAILER_BYTES = 12;
+
+	/* the statistics of one block, kept in the footer index */
+	static class Block {
+		long offset;
+		int rows;
+		long minTimestamp = Long.MAX_VALUE;
+		long maxTimestamp = Long.MIN_VALUE;
+		int minSensor = Integer.MAX_VALUE;
+		int maxSensor = Integer.MIN_VALUE;
+		long sensorMask;
+
+		/* true if a reading of the sensor (-1 for any) between from and to (inclusive) may be in the block */
+		boolean mayMatch(int sensor, long from, long to) {
+			if (maxTimestamp < from || minTimestamp > to) return false;
+			if (sensor < 0) return true;
+			return sensor >= minSensor && sensor <= maxSensor && (sensorMask & sensorBit(sensor)) != 0;
+		}
+	}
+
+	/* what a query did */
+	public static class QueryStats {
+		public long matches;
+		public int blocksRead;
+		public int blocksSkipped;
+	}
+
+	static long sensorBit(int code) {
+		return 1L << Math.min(code, 63);
+	}
+
+	/*
+	 * Writes readings into an indexed file through a channel positioned at its start. Readings are added
+	 * to the current block, which is written out when it is full; finish() writes the last block and the footer.
+	 */
+	public static class Writer implements ReadingSink {
+		private final FileChannel channel;
+		private final int[] sensors = new int[BLOCK_ROWS];
+		private final long[] timestamps = new long[BLOCK_ROWS];
+		private final float[][] values = new float[ReadingStore.VALUES][BLOCK_ROWS];
+		private final ByteBuffer blockBuf = ByteBuffer.allocate(4 + BLOCK_ROWS * ReadingStore.ROW_BYTES);
+		private final Map<String, Integer> sensorCodes = new HashMap<>();
+		private final List<String> sensorIds = new ArrayList<>();
+		private final List<Block> blocks = new ArrayList<>();
+		private Block current = new Block();
+		private long position;
+
+		/* constructor, writing the header */
+		public Writer(FileChannel channel) throws IOException {
+			this.channel = channel;
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).putInt(MAGIC).putInt(VERSION);
+			header.flip();
+			write(header);
+		}
+
+		/* adds one reading; an I/O error writing a full block is rethrown unchecked (see ReadingWriter) */
+		@Override
+		public void add(String sensorId, long timestamp, float value1, float value2, float value3) {
+			Integer code = sensorCodes.get(sensorId);
+			if (code == null) {
+				code = sensorIds.size();
+				sensorIds.add(sensorId);
+				sensorCodes.put(sensorId, code);
+			}
+			int row = current.rows++;
+			sensors[row] = code;
+			timestamps[row] = timestamp;
+			values[0][row] = value1;
+			values[1][row] = value2;
+			values[2][row] = value3;
+			current.minTimestamp = Math.min(current.minTimestamp, timestamp);
+			current.maxTimestamp = Math.max(current.maxTimestamp, timestamp);
+			current.minSensor = Math.min(current.minSensor, code);
+			current.maxSensor = Math.max(current.maxSensor, code);
+			current.sensorMask |= sensorBit(code);
+			if (current.rows == BLOCK_ROWS) {
+				try {
+					writeBlock();
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+		}
+
+		/* writes the current block, column by column */
+		private void writeBlock() throws IOException {
+			int rows = current.rows;
+			blockBuf.clear();
+			blockBuf.putInt(rows);
+			for (int i = 0; i < rows; i++) blockBuf.putInt(sensors[i]);
+			for (int i = 0; i < rows; i++) blockBuf.putLong(timestamps[i]);
+			for (float[] column : values) {
+				for (int i = 0; i < rows; i++) blockBuf.putFloat(column[i]);
+			}
+			blockBuf.flip();
+			current.offset = position;
+			blocks.add(current);
+			write(blockBuf);
+			current = new Block();
+		}
+
+		/* writes the last block, the footer and the trailer */
+		public void finish() throws IOException {
+			if (current.rows > 0) writeBlock();
+			long footerOffset = position;
+
+			int dictionaryBytes = 4;
+			List<byte[]> ids = new ArrayList<>();
+			for (String id : sensorIds) {
+				byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+				ids.add(bytes);
+				dictionaryBytes += 2 + bytes.length;
+			}
+			ByteBuffer footer = ByteBuffer.allocate(dictionaryBytes + 4 + blocks.size() * 44 + TRAILER_BYTES);
+			footer.putInt(ids.size());
+			for (byte[] bytes : ids) {
+				footer.putShort((short) bytes.length).put(bytes);
+			}
+			footer.putInt(blocks.size());
+			for (Block block : blocks) {
+				footer.putLong(block.offset).putInt(block.rows).putLong(block.minTimestamp).putLong(block.maxTimestamp)
+						.putInt(block.minSensor).putInt(block.maxSensor).putLong(block.sensorMask);
+			}
+			footer.putLong(footerOffset).putInt(MAGIC);
+			footer.flip();
+			write(footer);
+		}
+
+		private void write(ByteBuffer buf) throws IOException {
+			while (buf.hasRemaining()) position += channel.write(buf);
+		}
+	}
+
+	private final FileChannel channel;
+	private final List<String> sensorIds = new ArrayList<>();
+	private final Map<String, Integer> sensorCodes = new HashMap<>();
+	private final List<Block> blocks = new ArrayList<>();
+
+	/* opens an indexed file for querying, reading its footer */
+	public IndexedReadingFile(Path path) throws IOException {
+		this.channel = FileChannel.open(path, StandardOpenOption.READ);
+		long size = channel.size();
+		if (size < HEADER_BYTES + TRAILER_BYTES) throw new IOException(path + " Is Not An Indexed Reading File");
+		MappedByteBuffer trailer = channel.map(FileChannel.MapMode.READ_ONLY, size - TRAILER_BYTES, TRAILER_BYTES);
+		long footerOffset = trailer.getLong(0);
+		if (trailer.getInt(8) != MAGIC || footerOffset < HEADER_BYTES || footerOffset > size - TRAILER_BYTES) {
+			throw new IOException(path + " Is Not An Indexed Reading File (Or Was Not Finished)");
+		}
+
+		MappedByteBuffer footer = channel.map(FileChannel.MapMode.READ_ONLY, footerOffset, size - TRAILER_BYTES - footerOffset);
+		int sensorCount = footer.getInt();
+		for (int code = 0; code < sensorCount; code++) {
+			byte[] bytes = new byte[footer.getShort()];
+			footer.get(bytes);
+			String id = new String(bytes, StandardCharsets.UTF_8);
+			sensorIds.add(id);
+			sensorCodes.put(id, code);
+		}
+		int blockCount = footer.getInt();
+		for (int i = 0; i < blockCount; i++) {
+			Block block = new Block();
+			block.offset = footer.getLong();
+			block.rows = footer.getInt();
+			block.minTimestamp = footer.getLong();
+			block.maxTimestamp = footer.getLong();
+			block.minSensor = footer.getInt();
+			block.maxSensor = footer.getInt();
+			block.sensorMask = footer.getLong();
+			blocks.add(block);
+		}
+	}
+
+	/*
+	 * passes every reading of the sensor (null for all sensors) with from <= timestamp <= to to the sink,
+	 * in file order, mapping only the blocks the index says may hold one
+	 */
+	public QueryStats query(String sensorId, long from, long to, ReadingSink sink) throws IOException {
+		QueryStats stats = new QueryStats();
+		int sensor = -1;
+		if (sensorId != null) {
+			Integer code = sensorCodes.get(sensorId);
+			if (code == null) {
+				stats.blocksSkipped = blocks.size();
+				return stats;
+			}
+			sensor = code;
+		}
+
+		for (Block block : blocks) {
+			if (!block.mayMatch(sensor, from, to)) {
+				stats.blocksSkipped++;
+				continue;
+			}
+			stats.blocksRead++;
+			int rows = block.rows;
+			MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, block.offset, 4 + (long) rows * ReadingStore.ROW_BYTES);
+			int sensorsAt = 4;
+			int timestampsAt = sensorsAt + 4 * rows;
+			int valuesAt = timestampsAt + 8 * rows;
+			for (int i = 0; i < rows; i++) {
+				int code = buf.getInt(sensorsAt + 4 * i);
+				if (sensor >= 0 && code != sensor) continue;
+				long timestamp = buf.getLong(timestampsAt + 8 * i);
+				if (timestamp < from || timestamp > to) continue;
+				stats.matches++;
+				sink.add(sensorIds.get(code), timestamp,
+						buf.getFloat(valuesAt + 4 * i),
+						buf.getFloat(valuesAt + 4 * (rows + i)),
+						buf.getFloat(valuesAt + 4 * (2 * rows + i)));
+			}
+		}
+		return stats;
+	}
+
+	/* getter methods */
+	public int getBlockCount() {
+		return blocks.size();
+	}
+	public long getReadingCount() {
+		long total = 0;
+		for (Block block : blocks) total += block.rows;
+		return total;
+	}
+	public List<String> getSensorIds() {
+		return sensorIds;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
@@ -0,0 +1,161 @@
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Leveled, asynchronous console logging for the status messages of the client and the server.
+ *
+ * The send and receive threads never write to the console themselves: a record is put into a bounded
+ * ring buffer with one compare-and-set, and a background thread writes the records out in order through a
+ * buffered stream. If the ring is full the record is dropped (and counted) rather than blocking the caller.
+ * Records still in the ring when the process exits (including through System.exit) are written by a
+ * shutdown hook.
+ *
+ * The level is set with the log=<debug|info|warn|error|off> option (default debug, which prints everything):
+ *      debug   per-segment detail: payload dumps, Ack banners, checksum results
+ *      info    the transfer as a whole: meta data, progress of the modes, totals
+ *      warn    timeouts, retransmissions, duplicates, invalid checksums, simulated losses
+ *      error   failures that end the transfer
+ * Messages that are costly to build (payload dumps) are guarded by isDebug() so they are only built when printed.
+ */
+public final class Log {
+
+	enum Level { OFF, ERROR, WARN, INFO, DEBUG }
+
+	private static final int CAPACITY = 1 << 14;          // records the ring holds (a power of two)
+	private static final int MASK = CAPACITY - 1;
+	private static final long IDLE_PARK_NANOS = 1_000_000L; // how long the writer sleeps when the ring is empty
+
+	private static volatile Level level = Level.DEBUG;
+
+	// The Ring: Producers Claim A Slot By Advancing tail, Then Publish The Record Into It;
+	// The Writer Clears Each Slot Before Advancing head, So A Slot Is Empty Whenever It Can Be Claimed Again
+	private static final AtomicReferenceArray<String> slots = new AtomicReferenceArray<>(CAPACITY);
+	private static final AtomicLong tail = new AtomicLong();
+	private static volatile long head;
+	private static final LongAdder dropped = new LongAdder();
+
+	private static final PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16), false);
+	private static final List<Runnable> exitTasks = new ArrayList<>();
+
+	static {
+		Thread writer = new Thread(Log::writeLoop, "log-writer");
+		writer.setDaemon(true);
+		writer.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(Log::shutdown, "log-flush"));
+	}
+
+	private Log() {}
+
+	/* sets the level from the log=<level> option */
+	public static void configure(Protocol protocol) {
+		String name = protocol.getOption("log", null);
+		if (name == null) return;
+		try {
+			level = Level.valueOf(name.toUpperCase());
+		} catch (IllegalArgumentException e) {
+			warn("Ignoring Option log=" + name + " (Expected debug, info, warn, error or off)");
+		}
+	}
+
+	public static boolean isDebug() {
+		return level == Level.DEBUG;
+	}
+
+	public static boolean isEnabled(Level l) {
+		return l != Level.OFF && l.ordinal() <= level.ordinal();
+	}
+
+	public static void debug(String message) {
+		if (isDebug()) offer(message);
+	}
+
+	public static void info(String message) {
+		if (isEnabled(Level.INFO)) offer(message);
+	}
+
+	public static void warn(String message) {
+		if (isEnabled(Level.WARN)) offer(message);
+	}
+
+	public static void error(String message) {
+		if (isEnabled(Level.ERROR)) offer(message);
+	}
+
+	/* logs output the user asked for explicitly (e.g. metrics=<ms>), whatever the level */
+	public static void print(String message) {
+		offer(message);
+	}
+
+	/* runs the task on exit before the last records are written, so anything it logs is still printed */
+	public static synchronized void atExit(Runnable task) {
+		exitTasks.add(task);
+	}
+
+	/* waits until every record logged so far has been written out (e.g. before prompting for input) */
+	public static void flush() {
+		drain();
+	}
+
+	/* puts a record into the ring; never blocks, a full ring drops the record */
+	private static void offer(String message) {
+		long t;
+		do {
+			t = tail.get();
+			if (t - head >= CAPACITY) {
+				dropped.increment();
+				return;
+			}
+		} while (!tail.compareAndSet(t, t + 1));
+		slots.set((int) t & MASK, message);
+	}
+
+	/* the background writer: drains the ring, flushing the stream whenever it runs dry */
+	private static void writeLoop() {
+		while (true) {
+			if (drain() == 0) LockSupport.parkNanos(IDLE_PARK_NANOS);
+		}
+	}
+
+	/* writes the published records in order; returns how many were written */
+	private static synchronized int drain() {
+		int written = 0;
+		long h = head;
+		while (true) {
+			int slot = (int) h & MASK;
+			String message = slots.get(slot);
+			if (message == null) break; // Empty, Or Claimed But Not Yet Published
+			slots.set(slot, null);
+			head = ++h;
+			out.println(message);
+			written++;
+		}
+		long lost = dropped.sumThenReset();
+		if (lost > 0) out.println("LOG: " + lost + " Records Dropped (Ring Buffer Full)");
+		if (written > 0 || lost > 0) out.flush();
+		return written;
+	}
+
+	/* the shutdown hook: runs the exit tasks, then writes whatever is left in the ring */
+	private static void shutdown() {
+		List<Runnable> tasks;
+		synchronized (Log.class) {
+			tasks = new ArrayList<>(exitTasks);
+		}
+		for (Runnable task : tasks) task.run();
+
+		// A Producer May Have Claimed A Slot Just Before Exit; Give It A Moment To Publish
+		long deadline = System.nanoTime() + 100_000_000L;
+		while (drain() > 0 || (head != tail.get() && System.nanoTime() < deadline)) {
+			Thread.onSpinWait();
+		}
+		out.flush();
+	}
+}
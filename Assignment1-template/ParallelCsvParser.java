@@ -0,0 +1,168 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/*
+ * Parses a byte range of the client's CSV file on the common fork/join pool (ingest=parallel, see CsvCursor).
+ *
+ * The range is parsed a batch of BATCH_BYTES at a time, and BATCHES_AHEAD batches are in flight ahead of the
+ * reader, so memory stays bounded however large the file is. A batch is a fork/join task that halves its
+ * byte range at a line boundary until a part is at most LEAF_BYTES, parses the leaves in parallel and joins
+ * them back in file order. Each leaf holds the readings of its lines in the payload form, the byte offset
+ * just past each one (so patches can be cut and resumed exactly as by the serial reader) and the lines that
+ * were malformed with their offsets, so the reader reports each one when it passes it, as the serial reader does.
+ */
+public class ParallelCsvParser {
+
+	static final int LEAF_BYTES = 1 << 20;             // the most bytes one task parses itself
+	static final long BATCH_BYTES = 16L << 20;         // bytes of the file parsed per batch
+	static final int BATCHES_AHEAD = 2;                // batches parsed ahead of the reader
+
+	/* the parsed lines of one part of the file */
+	static class Leaf {
+		final String[] readings;   // valid readings in the Reading.toString() form
+		final long[] ends;         // byte offset just past the line of each reading
+		final int count;
+		final long end;            // byte offset just past the part
+		final List<String> invalid; // the malformed lines of the part
+		final long[] invalidEnds;  // byte offset just past each malformed line
+
+		Leaf(String[] readings, long[] ends, int count, long end, List<String> invalid, long[] invalidEnds) {
+			this.readings = readings;
+			this.ends = ends;
+			this.count = count;
+			this.end = end;
+			this.invalid = invalid;
+			this.invalidEnds = invalidEnds;
+		}
+	}
+
+	private final FileChannel channel;
+	private final long end;
+	private long next;                                  // where the next batch starts
+	private final Deque<ForkJoinTask<List<Leaf>>> batches = new ArrayDeque<>();
+	private Iterator<Leaf> leaves = Collections.emptyIterator();
+
+	/* constructor for the lines in [start, end) of the file (start at a line start) */
+	public ParallelCsvParser(FileChannel channel, long start, long end) {
+		this.channel = channel;
+		this.next = start;
+		this.end = end;
+		for (int i = 0; i < BATCHES_AHEAD; i++) submitBatch();
+	}
+
+	/* the next part of the range in file order, or null at its end */
+	public Leaf next() throws IOException {
+		while (!leaves.hasNext()) {
+			ForkJoinTask<List<Leaf>> batch = batches.poll();
+			if (batch == null) return null;
+			try {
+				leaves = batch.join().iterator();
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+			submitBatch();
+		}
+		return leaves.next();
+	}
+
+	/* stops parsing ahead (batches already running finish on their own) */
+	public void cancel() {
+		for (ForkJoinTask<List<Leaf>> batch : batches) batch.cancel(false);
+		batches.clear();
+	}
+
+	private void submitBatch() {
+		if (next >= end) return;
+		long start = next;
+		long stop = Math.min(end, start + BATCH_BYTES);
+		try {
+			if (stop < end) stop = CsvCursor.nextLineStart(channel, stop - 1, end, ByteBuffer.allocate(8192));
+		} catch (IOException e) {
+			stop = end;     // the batch runs to the end, so its own read reports the error
+		}
+		next = stop;
+		batches.add(ForkJoinPool.commonPool().submit(new Parse(start, stop)));
+	}
+
+	/* parses [start, stop) of the file, in parallel halves while it is larger than LEAF_BYTES */
+	private class Parse extends RecursiveTask<List<Leaf>> {
+		private static final long serialVersionUID = 1L;
+		private final long start;
+		private final long stop;
+
+		Parse(long start, long stop) {
+			this.start = start;
+			this.stop = stop;
+		}
+
+		@Override
+		protected List<Leaf> compute() {
+			try {
+				if (stop - start > LEAF_BYTES) {
+					long middle = CsvCursor.nextLineStart(channel, start + (stop - start) / 2 - 1, stop, ByteBuffer.allocate(8192));
+					if (middle > start && middle < stop) {
+						Parse second = new Parse(middle, stop);
+						second.fork();
+						List<Leaf> parsed = new ArrayList<>(new Parse(start, middle).compute());
+						parsed.addAll(second.join());
+						return parsed;
+					}
+				}
+				return Collections.singletonList(parseLeaf());
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		/* parses every line of the part */
+		private Leaf parseLeaf() throws IOException {
+			MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, start, stop - start);
+			int limit = map.limit();
+			String[] readings = new String[64];
+			long[] ends = new long[64];
+			int count = 0;
+			List<String> invalid = new ArrayList<>();
+			long[] invalidEnds = new long[4];
+			int lineStart = 0;
+			while (lineStart < limit) {
+				int i = lineStart;
+				while (i < limit && map.get(i) != '\n') i++;
+				int lineEnd = i;
+				if (lineEnd > lineStart && map.get(lineEnd - 1) == '\r') lineEnd--;
+				byte[] bytes = new byte[lineEnd - lineStart];
+				map.get(lineStart, bytes);
+				String line = new String(bytes, StandardCharsets.UTF_8);
+				lineStart = Math.min(i + 1, limit);
+
+				String reading = Protocol.parseReading(line);
+				if (reading == null) {
+					if (invalid.size() == invalidEnds.length) invalidEnds = Arrays.copyOf(invalidEnds, invalidEnds.length * 2);
+					invalidEnds[invalid.size()] = start + lineStart;
+					invalid.add(line);
+				} else {
+					if (count == readings.length) {
+						readings = Arrays.copyOf(readings, count * 2);
+						ends = Arrays.copyOf(ends, count * 2);
+					}
+					readings[count] = reading;
+					ends[count++] = start + lineStart;
+				}
+			}
+			return new Leaf(readings, ends, count, stop, invalid, invalidEnds);
+		}
+	}
+}
@@ -5,25 +5,40 @@
  * 000000000
  */
 import java.io.File;
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.ByteArrayOutputStream;
-import java.io.ObjectOutputStream;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 
 public class Protocol {
 
 	static final String  NORMAL_MODE="nm"   ;         // normal transfer mode: (for Part 1 and 2)
 	static final String	 TIMEOUT_MODE ="wt"  ;        // timeout transfer mode: (for Part 3)
 	static final String	 LOST_MODE ="wl"  ;           // lost Ack transfer mode: (for Part 4)
-	static final int DEFAULT_TIMEOUT =1000  ;         // default timeout in milliseconds (for Part 3)
+	static final String	 SLIDING_MODE ="sr"  ;        // selective repeat (sliding window) transfer mode
+	static final String	 MULTI_MODE ="mc"  ;          // multi-client server mode (one session per client address)
+	static final String	 CONGESTION_MODE ="cc"  ;     // selective repeat under an AIMD congestion window (the server receives it in sr mode)
+	static final String	 SACK ="sack"  ;              // ack=sack: sr Acks carry a cumulative ack point and a selective ack bitmap
+	static final int DEFAULT_TIMEOUT =1000  ;         // default timeout in milliseconds (for Part 3), the initial timeout when it is adaptive
 	static final int DEFAULT_RETRIES =4  ;            // default number of consecutive retries (for Part 3)
+	static final int DEFAULT_WINDOW =8  ;             // default number of outstanding Data segments in selective repeat mode
+	static final int IDLE_TIMEOUT =DEFAULT_TIMEOUT << DEFAULT_RETRIES  ; // how long the server waits for a client that may have given up (outlasts the client's backed-off retries)
+	static final int LINGER_TIMEOUT =2000  ;          // how long the server keeps re-acking duplicates after the last reading arrives
+	static final int UNKNOWN_TOTAL =-1  ;             // fileTotalReadings sent in the Meta segment when the transfer ends with an End segment instead
 	public static final int MAX_Segment_SIZE = 4096;  //the max segment size that can be used when creating the received packet's buffer
+	static final int MAX_DATAGRAM_SIZE = 65507;       // the largest UDP payload, the upper limit of budget=<bytes>
+	static final int MTU_BUDGET = 1472;               // budget=mtu: the largest datagram that is not fragmented on a 1500 byte Ethernet MTU
+
+	// Options That Are Carried In The Meta Segment So Both Sides Agree On Them
+	static final Set<String> META_OPTIONS = new HashSet<>(Arrays.asList("window", "codec", "mode", "ack", "budget", "resume", "stripes", "checksum", "delack"));
 
 	/*
 	 * The following attributes control the execution of the transfer protocol and provide access to the 
@@ -45,11 +60,26 @@ public class Protocol {
 	private int timeout;              // the timeout in milliseconds to use for the protocol with timeout (for Part 3)
 	private int maxRetries;           // the maximum number of consecutive retries (retransmissions) to allow before exiting the client (for Part 3)(This is per segment)
 	private int currRetry;            // the current number of consecutive retries (retransmissions) following an Ack loss (for Part 3)(This is per segment)
+	private RttEstimator rttEstimator; // adapts the timeout to the measured round trip time (unless rto=fixed)
+	private long dataSegSentAt;       // System.nanoTime() when dataSeg was first sent, for the round trip time sample
+	private DatagramPacket dataSegPacket; // the encoded dataSeg, resent as is on timeout
+	private final byte[] ackBuf = new byte[MAX_Segment_SIZE];               // receive buffer reused for every Ack
+	private final DatagramPacket ackPacket = new DatagramPacket(ackBuf, ackBuf.length);
 
 	private int fileTotalReadings;    // number of all readings in the csv file
 	private int sentReadings;         // number of readings successfully sent and acknowledged
 	private int totalSegments;        // total segments that the client sent to the server
 
+	private CsvCursor csvCursor;      // single-pass reader over inputFile, kept open for the whole transfer
+	private long ackedOffset;         // byte offset in inputFile just past the last acknowledged reading
+	private long dataSegEnd;          // byte offset in inputFile just past the readings carried by dataSeg
+	private int dataSegReadings;      // number of readings carried by dataSeg
+	private SegmentPipeline pipeline; // prepares the Data segments ahead on its own thread (pipeline=<n>), else null
+	private int pipelineDepth;        // segments the pipeline prepares ahead, parsed once from pipeline=<n|on|off>; 0 when off
+	private int ackedSegments;        // number of Data segments acknowledged so far (drives the alternating seqNum)
+
+	private final Map<String, String> options = new HashMap<>(); // optional key=value settings given after the mode on the command line or in the Meta segment
+
 	// Shared Protocol instance so Client and Server access and operate on the same values for the protocol’s attributes (the above attributes).
 	public static Protocol instance = new Protocol();
 
@@ -69,43 +99,93 @@ public class Protocol {
 	 * See coursework specification for full details.	
 	 */
 	public void sendMetadata()   { 
-		// Count Total Number Of Readings (Lines) In The Input CSV File
-		int lines = 0;
-		try (BufferedReader br = new BufferedReader(new FileReader(this.inputFile))) {
-			while (br.readLine() != null) lines++;
-		} catch (IOException e) {
-			System.out.println("CLIENT: Error Reading Input File: " + e.getMessage());
-			if (this.socket != null && !this.socket.isClosed()) this.socket.close();
-			System.exit(0);
+		// Count Total Number Of Readings (Lines) In The Input CSV File, Unless total=unknown Was Given
+		// (Then Data Starts Straight Away And An End Segment Finishes The Transfer)
+		int lines = UNKNOWN_TOTAL;
+		if (!"unknown".equals(getOption("total", "count"))) {
+			try {
+				lines = (int) CsvCursor.countLines(this.inputFile);
+			} catch (IOException e) {
+				Log.error("CLIENT: Error Reading Input File: " + e.getMessage());
+				if (this.socket != null && !this.socket.isClosed()) this.socket.close();
+				System.exit(0);
+			}
 		}
 
 		// Store The Result In The Global Variable
 		this.fileTotalReadings = lines;
 
-		// Assemble Payload: <fileTotalReadings>,<outputFileName>,<patchSize>
-		String payload = this.fileTotalReadings + "," + this.outputFileName + "," + this.maxPatchSize;
+		// Assemble Payload: <fileTotalReadings>,<outputFileName>,<patchSize>[,<option>=<value>...]
+		String payload = this.fileTotalReadings + "," + this.outputFileName + "," + this.maxPatchSize + metaOptions();
 
 		// Create Meta Segment (SeqNum = 0)
 		Segment metaSeg = new Segment(0, SegmentType.Meta, payload, payload.length());
 
 		// Print Status Messages
-		System.out.println("CLIENT: META [SEQ#" + metaSeg.getSeqNum() + "] (Number Of Readings:" + this.fileTotalReadings + ", File Name:" + this.outputFileName + ", Patch Size:" + this.maxPatchSize + ")");
+		Log.info("CLIENT: META [SEQ#" + metaSeg.getSeqNum() + "] (Number Of Readings:" + this.fileTotalReadings + ", File Name:" + this.outputFileName + ", Patch Size:" + this.maxPatchSize + ")");
 
-		// Serialise And Send The Segment To The Server
+		// Encode And Send The Segment To The Server
 		try {
-			ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-			ObjectOutputStream os = new ObjectOutputStream(outputStream);
-			os.writeObject(metaSeg);
-			byte[] data = outputStream.toByteArray();
+			byte[] data = SegmentCodec.encode(metaSeg, getCodec(), getChecksum());
 			DatagramPacket packet = new DatagramPacket(data, data.length, this.ipAddress, this.portNumber);
 			this.socket.send(packet);
+
+			// A Resumable Transfer Continues From The Server's Checkpoint, So Wait For It
+			if (isResumable()) receiveResumePoint(packet);
 		} catch (IOException e) {
-			System.out.println("CLIENT: Error Sending Metadata: " + e.getMessage());
+			Log.error("CLIENT: Error Sending Metadata: " + e.getMessage());
 			if (this.socket != null && !this.socket.isClosed()) this.socket.close();
 			System.exit(0);
 		}
 	} 
 
+	/* 
+	 * Waits for the server's reply to the Meta segment of a resumable transfer (resending the Meta
+	 * segment on timeout) and continues from the readings the server already has
+	 */
+	private void receiveResumePoint(DatagramPacket metaPacket) throws IOException {
+		RttEstimator rtt = getRttEstimator();
+		int retry = 0;
+		while (true) {
+			this.socket.setSoTimeout(rtt.timeoutFor(retry));
+			this.ackPacket.setLength(this.ackBuf.length);
+			try {
+				this.socket.receive(this.ackPacket);
+			} catch (java.net.SocketTimeoutException e) {
+				retry++;
+				if (retry > this.maxRetries) {
+					Log.error("CLIENT: No Reply To The Meta Segment. Exiting.");
+					this.socket.close();
+					System.exit(0);
+				}
+				Log.warn("CLIENT: Re-Sending The Meta Segment, Current Retry " + retry);
+				this.socket.send(metaPacket);
+				continue;
+			}
+
+			// Anything But An Intact Reply Is Ignored
+			Segment reply;
+			try {
+				reply = SegmentCodec.decode(this.ackPacket, getChecksum());
+			} catch (IOException e) {
+				continue;
+			}
+			if (reply.getType() == SegmentType.Meta && reply.isValid() && reply.getPayLoad().startsWith(ReadingWriter.RESUME_PREFIX)) {
+				String[] parts = reply.getPayLoad().substring(ReadingWriter.RESUME_PREFIX.length()).split(",");
+				this.ackedOffset = Long.parseLong(parts[0]);
+				this.sentReadings = Integer.parseInt(parts[1]);
+				break;
+			}
+		}
+		this.socket.setSoTimeout(0);
+		if (this.fileTotalReadings != UNKNOWN_TOTAL && this.sentReadings >= this.fileTotalReadings) {
+			Log.info("CLIENT: The Server Already Has All " + this.fileTotalReadings + " Readings");
+			this.socket.close();
+			System.exit(0);
+		}
+		if (this.sentReadings > 0) Log.info("CLIENT: Resuming From Reading " + (this.sentReadings + 1) + " (Byte Offset " + this.ackedOffset + ")");
+	}
+
 
 	/* 
 	 * This method read and send the next data segment (dataSeg) to the server. 
@@ -113,71 +193,58 @@ public class Protocol {
 	 */
 	public void readAndSend() { 
 		// If There Are No More Readings To Send, Just Return
-		if (this.sentReadings >= this.fileTotalReadings) {
+		if (this.fileTotalReadings != UNKNOWN_TOTAL && this.sentReadings >= this.fileTotalReadings) {
 			return;
 		}
 
-		// Read Up To MaxPatchSize Readings From The Input File Starting At SentReadings
-		StringBuilder payloadBuilder = new StringBuilder();
-		int linesRead = 0;
-		try (BufferedReader br = new BufferedReader(new FileReader(this.inputFile))) {
-			// Skip Already Sent Lines
-			for (int i = 0; i < this.sentReadings; i++) {
-				if (br.readLine() == null) break;
-			}
+		// With pipeline=<n> The Next Segment Has Already Been Read, Built And Encoded By The Producer Thread
+		if (this.pipelineDepth > 0) {
+			sendPrepared();
+			return;
+		}
 
-			String line;
-			while (linesRead < this.maxPatchSize && (line = br.readLine()) != null) {
-				// Parse The CSV Line Into A Reading Object: SensorId,Timestamp,Value1,Value2,Value3
-				String[] parts = line.split(",");
-				if (parts.length >= 5) {
-					String sensorId = parts[0].trim();
-					long timestamp = Long.parseLong(parts[1].trim());
-					float[] values = new float[3];
-					values[0] = Float.parseFloat(parts[2].trim());
-					values[1] = Float.parseFloat(parts[3].trim());
-					values[2] = Float.parseFloat(parts[4].trim());
-					Reading r = new Reading(sensorId, timestamp, values);
-					if (payloadBuilder.length() > 0) payloadBuilder.append(";");
-					payloadBuilder.append(r.toString());
-					linesRead++;
-				} else {
-					System.out.println("CLIENT: Invalid CSV Line: " + line);
-				}
-			}
+		// Read Up To MaxPatchSize Readings From The Input File Starting After The Last Acknowledged Reading
+		CsvCursor.Patch patch = null;
+		try {
+			// The Cursor Stays Open Between Calls So Each Line Is Read Once
+			if (this.csvCursor == null) this.csvCursor = CsvCursor.open(this);
+
+			// An Unacknowledged Patch Is Read Again From Its Saved Offset Instead Of Rescanning The File
+			if (this.csvCursor.position() != this.ackedOffset) this.csvCursor.seek(this.ackedOffset);
+			patch = this.csvCursor.readPatch(this.maxPatchSize, getPayloadBudget());
 		} catch (IOException e) {
-			System.out.println("CLIENT: Error Reading Input File: " + e.getMessage());
+			Log.error("CLIENT: Error Reading Input File: " + e.getMessage());
 			if (this.socket != null && !this.socket.isClosed()) this.socket.close();
 			System.exit(0);
 		}
 
-		// If Nothing Was Read, Return
-		if (linesRead == 0) return;
+		// If Nothing Was Read, Return (Or Mark The End Of The Readings When The Total Is Unknown)
+		if (patch == null && this.fileTotalReadings != UNKNOWN_TOTAL) return;
 
-		String payload = payloadBuilder.toString();
+		String payload = patch == null ? "" : isResumable() ? ReadingWriter.tagOffset(patch.end, patch.payload) : patch.payload;
+		this.dataSegEnd = patch == null ? this.ackedOffset : patch.end;
+		this.dataSegReadings = patch == null ? 0 : patch.readings;
 
-		// Determine SeqNum: First Data Segment Should Have SeqNum 1 And Alternate Thereafter
-		int seqNum = (this.totalSegments % 2 == 0) ? 1 : 0;
+		// Determine SeqNum: First Data Segment Should Have SeqNum 1 And Alternate With Each Acknowledged Segment
+		// (Retransmissions Do Not Flip It, So It Is Not Derived From TotalSegments)
+		int seqNum = (this.ackedSegments % 2 == 0) ? 1 : 0;
 
-	// Create Data Segment Using Constructor So Checksum Is Calculated
-	Segment dataSegment = new Segment(seqNum, SegmentType.Data, payload, payload.length());
+	// Create Data Segment Using Constructor (Its Checksum Is Calculated When It Is Encoded)
+	Segment dataSegment = new Segment(seqNum, patch == null ? SegmentType.End : SegmentType.Data, payload, payload.length());
 
 	// Store The Current Data Segment So Other Methods Can Access It
 	this.dataSeg = dataSegment;
 
-		// Print Status Message
-		System.out.println("CLIENT: Send: DATA [SEQ#" + dataSegment.getSeqNum() + "](Size:" + dataSegment.getSize() + ", Crc: " + dataSegment.getChecksum() + ", Content:" + dataSegment.getPayLoad() + ")");
-
-		// Serialise And Send The Data Segment
+		// Encode, Print Status Message And Send The Data Segment
 		try {
-			ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-			ObjectOutputStream os = new ObjectOutputStream(outputStream);
-			os.writeObject(dataSegment);
-			byte[] data = outputStream.toByteArray();
-			DatagramPacket packet = new DatagramPacket(data, data.length, this.ipAddress, this.portNumber);
-			this.socket.send(packet);
+			byte[] data = SegmentCodec.encode(dataSegment, getCodec(), getChecksum());
+			if (Log.isDebug()) Log.debug("CLIENT: Send: " + (patch == null ? "END" : "DATA") + " [SEQ#" + dataSegment.getSeqNum() + "](Size:" + dataSegment.getSize() + ", Crc: " + dataSegment.getChecksum() + ", Content:" + dataSegment.getPayLoad() + ")");
+			this.dataSegPacket = new DatagramPacket(data, data.length, this.ipAddress, this.portNumber);
+			this.socket.send(this.dataSegPacket);
+			this.dataSegSentAt = System.nanoTime();
+			TransferMetrics.instance.segmentSent(data.length, dataSegment.getSize(), false);
 		} catch (IOException e) {
-			System.out.println("CLIENT: Error Sending Data Segment: " + e.getMessage());
+			Log.error("CLIENT: Error Sending Data Segment: " + e.getMessage());
 			if (this.socket != null && !this.socket.isClosed()) this.socket.close();
 			System.exit(0);
 		}
@@ -186,49 +253,84 @@ public class Protocol {
 		this.totalSegments++;
 	}
 
+	/* 
+	 * Sends the next segment prepared by the pipeline (started on first use, from the last acknowledged reading)
+	 */
+	private void sendPrepared() {
+		try {
+			if (this.pipeline == null) this.pipeline = new SegmentPipeline(this, this.ackedOffset, this.pipelineDepth);
+			SegmentPipeline.Prepared next = this.pipeline.next();
+			if (next == null) return;
+
+			this.dataSeg = next.segment;
+			this.dataSegEnd = next.end;
+			this.dataSegReadings = next.readings;
+			if (Log.isDebug()) Log.debug("CLIENT: Send: " + (next.segment.getType() == SegmentType.End ? "END" : "DATA") + " [SEQ#" + next.segment.getSeqNum() + "](Size:" + next.segment.getSize() + ", Crc: " + next.segment.getChecksum() + ", Content:" + next.segment.getPayLoad() + ")");
+
+			this.dataSegPacket = new DatagramPacket(next.data, next.data.length, this.ipAddress, this.portNumber);
+			this.socket.send(this.dataSegPacket);
+			this.dataSegSentAt = System.nanoTime();
+			TransferMetrics.instance.segmentSent(next.data.length, next.segment.getSize(), false);
+		} catch (IOException e) {
+			Log.error("CLIENT: Error Sending Data Segment: " + e.getMessage());
+			if (this.socket != null && !this.socket.isClosed()) this.socket.close();
+			System.exit(0);
+		}
+		this.totalSegments++;
+	}
+
 	/* 
 	 * This method receives the current Ack segment (ackSeg) from the server 
 	 * See coursework specification for full details.
 	 */
 	public boolean receiveAck() { 
-		byte[] buf = new byte[MAX_Segment_SIZE];
-		DatagramPacket incomingPacket = new DatagramPacket(buf, buf.length);
+		// Reuse The Same Receive Packet For Every Ack
+		DatagramPacket incomingPacket = this.ackPacket;
+		incomingPacket.setLength(this.ackBuf.length);
 		try {
 			// Wait For Ack From Server
 			this.socket.receive(incomingPacket);
 
-			// Deserialize The Incoming Segment
-			byte[] data = incomingPacket.getData();
-			java.io.ByteArrayInputStream in = new java.io.ByteArrayInputStream(data);
-			java.io.ObjectInputStream is = new java.io.ObjectInputStream(in);
-			Segment receivedAck = (Segment) is.readObject();
+			// Decode The Incoming Segment (A Damaged Ack Is Treated Like A Lost One)
+			Segment receivedAck;
+			try {
+				receivedAck = SegmentCodec.decode(incomingPacket, getChecksum());
+			} catch (IOException e) {
+				Log.warn("CLIENT: Dropping Undecodable Ack: " + e.getMessage());
+				return false;
+			}
+			if (!receivedAck.isValid()) {
+				Log.warn("CLIENT: Dropping Ack With An Invalid Checksum");
+				return false;
+			}
+
+			// A Late Reply To A Resent Meta Segment Is Not An Ack
+			if (receivedAck.getType() != SegmentType.Ack) return false;
 
 			// Store Ack Segment
 			this.ackSeg = receivedAck;
+			TransferMetrics.instance.ackReceived();
 
 			// Print Status Message
-			System.out.println("CLIENT: Receive: ACK [SEQ#" + receivedAck.getSeqNum() + "]");
+			Log.debug("CLIENT: Receive: ACK [SEQ#" + receivedAck.getSeqNum() + "]");
 
 			// Check Sequence Number
 			if (this.dataSeg == null || receivedAck.getSeqNum() != this.dataSeg.getSeqNum()) {
 				return false;
 			}
 
-			// Update SentReadings Based On The Payload Of The Last Sent Data Segment
-			String payload = this.dataSeg.getPayLoad();
-			int count = 0;
-			if (payload != null && !payload.isEmpty()) {
-				count = payload.split(";").length;
-			}
-			this.sentReadings += count;
+			// Update SentReadings By The Readings The Last Sent Data Segment Carried
+			this.sentReadings += this.dataSegReadings;
+			this.ackedSegments++;
+			this.ackedOffset = this.dataSegEnd;
 				
 			// Separator Line (Visual) 
 			// Produced By Copilot
-			System.out.println("***************************************************************************************************");
+			Log.debug("***************************************************************************************************");
 
-			// If All Readings Have Been Acknowledged, Print Total Segments And Exit
-			if (this.sentReadings >= this.fileTotalReadings) {
-				System.out.println("Total Segments: " + this.totalSegments);
+			// If All Readings Have Been Acknowledged (Or The End Segment Was), Print Total Segments And Exit
+			if (this.fileTotalReadings == UNKNOWN_TOTAL ? this.dataSeg.getType() == SegmentType.End : this.sentReadings >= this.fileTotalReadings) {
+				Log.info("Total Segments: " + this.totalSegments);
 				System.exit(0);
 			}
 
@@ -238,11 +340,7 @@ public class Protocol {
 			// Timeout Waiting For ACK - Return False So Caller Can Retransmit
 			return false;
 		} catch (java.io.IOException e) {
-			System.out.println("CLIENT: Error Receiving Ack: " + e.getMessage());
-			if (this.socket != null && !this.socket.isClosed()) this.socket.close();
-			System.exit(0);
-		} catch (ClassNotFoundException e) {
-			System.out.println("CLIENT: Error Receiving Ack: " + e.getMessage());
+			Log.error("CLIENT: Error Receiving Ack: " + e.getMessage());
 			if (this.socket != null && !this.socket.isClosed()) this.socket.close();
 			System.exit(0);
 		}
@@ -258,13 +356,22 @@ public class Protocol {
 		if (this.dataSeg == null) return;
 
 		try {
-			// Set Socket Timeout
-			this.socket.setSoTimeout(this.timeout);
+			RttEstimator rtt = getRttEstimator();
 
 			// Loop Until Ack Received Or Max Retries Exceeded
 			while (true) {
+				// Set Socket Timeout From The RTT Estimate, Doubled For Every Consecutive Retry
+				this.socket.setSoTimeout(rtt.timeoutFor(this.currRetry));
+
 				boolean ackReceived = receiveAck();
 				if (ackReceived) {
+					// Only Segments Sent Once Give A Trustworthy RTT Sample (Karn's Rule)
+					if (this.currRetry == 0) {
+						long rttNanos = System.nanoTime() - this.dataSegSentAt;
+						rtt.sample(rttNanos);
+						TransferMetrics.instance.rttSample(rttNanos);
+					}
+
 					// Reset Current Retry Counter
 					this.currRetry = 0;
 					// Disable Timeout (Blocking Receive)
@@ -274,35 +381,36 @@ public class Protocol {
 
 				// Not Acknowledged - Retransmit
 				// Produced By Copilot
+				TransferMetrics.instance.timeout();
 				this.currRetry++;
 				if (this.currRetry > this.maxRetries) {
-					System.out.println("CLIENT: Maximum Retries Exceeded. Exiting.");
+					Log.error("CLIENT: Maximum Retries Exceeded. Exiting.");
 					if (this.socket != null && !this.socket.isClosed()) this.socket.close();
 					System.exit(0);
 				}
 
 				// Inform User About Timeout And Retransmission
-				System.out.println("CLIENT: TIMEOUT ALERT");
-				System.out.println("CLIENT: Re-Sending The Same Segment Again, Current Retry " + this.currRetry);
+				Log.warn("CLIENT: TIMEOUT ALERT");
+				Log.warn("CLIENT: Re-Sending The Same Segment Again, Current Retry " + this.currRetry);
 
-				// Resend The Same Data Segment
+				// Resend The Same Data Segment (The Bytes Encoded When It Was First Sent)
 				try {
-					ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-					ObjectOutputStream os = new ObjectOutputStream(outputStream);
-					os.writeObject(this.dataSeg);
-					byte[] data = outputStream.toByteArray();
-					DatagramPacket packet = new DatagramPacket(data, data.length, this.ipAddress, this.portNumber);
-					this.socket.send(packet);
+					if (this.dataSegPacket == null) {
+						byte[] data = SegmentCodec.encode(this.dataSeg, getCodec(), getChecksum());
+						this.dataSegPacket = new DatagramPacket(data, data.length, this.ipAddress, this.portNumber);
+					}
+					this.socket.send(this.dataSegPacket);
+					TransferMetrics.instance.segmentSent(this.dataSegPacket.getLength(), this.dataSeg.getSize(), true);
 					// Update Total Segments Count
 					this.totalSegments++;
 				} catch (IOException e) {
-					System.out.println("CLIENT: Error Resending Data Segment: " + e.getMessage());
+					Log.error("CLIENT: Error Resending Data Segment: " + e.getMessage());
 					if (this.socket != null && !this.socket.isClosed()) this.socket.close();
 					System.exit(0);
 				}
 			}
 		} catch (SocketException e) {
-			System.out.println("CLIENT: Socket Error: " + e.getMessage());
+			Log.error("CLIENT: Socket Error: " + e.getMessage());
 			System.exit(0);
 		}
 	}
@@ -313,13 +421,14 @@ public class Protocol {
 	 * See coursework specification for full details.
 	 */
 	public void receiveWithAckLoss(DatagramSocket serverSocket, float loss)  {
-		byte[] buf = new byte[MAX_Segment_SIZE];
+		byte[] buf = new byte[getReceiveBufferSize()];
 
-		// Create A Temporary List To Store The Readings
-		java.util.List<String> receivedLines = new java.util.ArrayList<>();
+		// Accepted Readings Are Appended To The Output File As They Arrive
+		ReadingWriter writer = null;
 
 		// Track The Number Of Correctly Received Readings
 		int readingCount = 0;
+		boolean endReceived = false;
 
 		// Statistics For Efficiency
 		int totalBytesReceived = 0; // Includes Retransmissions
@@ -329,55 +438,60 @@ public class Protocol {
 		int expectedSeq = 1;
 		int lastCorrectSeq = -1;
 
-		System.out.println("SERVER: Waiting For Data With Ack Loss Simulation");
+		Log.info("SERVER: Waiting For Data With Ack Loss Simulation");
 
 		try {
-			// Wait Up To 2000Ms For Packets When Client May Have Given Up
-			serverSocket.setSoTimeout(2000);
+			writer = openWriter();
+			readingCount = (int) writer.getResumedFrom().readings;
 
+			// Wait Up To IDLE_TIMEOUT For Packets When Client May Have Given Up
+			serverSocket.setSoTimeout(IDLE_TIMEOUT);
+
+			DatagramPacket incomingPacket = new DatagramPacket(buf, buf.length);
 			while (true) { // Produced By Copilot
-				DatagramPacket incomingPacket = new DatagramPacket(buf, buf.length);
+				incomingPacket.setLength(buf.length);
 				try {
 					serverSocket.receive(incomingPacket);
 				} catch (java.net.SocketTimeoutException ste) {
 					// No Packet Received Within Timeout - Assume Client Exited After Retries
-					System.out.println("SERVER: No Packets Received For 2000ms. Exiting.");
+					Log.info("SERVER: No Packets Received For " + IDLE_TIMEOUT + "ms. Exiting.");
 					break;
 				}
 
-				Segment serverDataSeg = new Segment();
-				byte[] data = incomingPacket.getData();
-				java.io.ByteArrayInputStream in = new java.io.ByteArrayInputStream(data);
-				java.io.ObjectInputStream is = new java.io.ObjectInputStream(in);
-
+				Segment serverDataSeg;
 				try {
-					serverDataSeg = (Segment) is.readObject();
-				} catch (ClassNotFoundException e) {
-					e.printStackTrace();
+					serverDataSeg = SegmentCodec.decode(incomingPacket, getChecksum());
+				} catch (IOException e) {
+					Log.warn("SERVER: Dropping Undecodable Segment: " + e.getMessage());
 					continue;
 				}
 
-				System.out.println("SERVER: Receive: DATA [SEQ#"+ serverDataSeg.getSeqNum()+ "]("+"size:"+serverDataSeg.getSize()+", crc: "+serverDataSeg.getChecksum()+", content:"  + serverDataSeg.getPayLoad()+")");
+				if (Log.isDebug()) Log.debug("SERVER: Receive: DATA [SEQ#"+ serverDataSeg.getSeqNum()+ "]("+"size:"+serverDataSeg.getSize()+", crc: "+serverDataSeg.getChecksum()+", content:"  + serverDataSeg.getPayLoad()+")");
 
 				// Count Every Received Data Segment Bytes
 				totalBytesReceived += serverDataSeg.getSize();
+				TransferMetrics.instance.segmentReceived(incomingPacket.getLength());
 
-				long x = serverDataSeg.calculateChecksum();
+				boolean valid = serverDataSeg.isValid();
 
-				if (serverDataSeg.getType() == SegmentType.Data && x == serverDataSeg.getChecksum()) {
-					System.out.println("SERVER: Calculated Checksum Is " + x + "  VALID");
+				boolean isData = serverDataSeg.getType() == SegmentType.Data || serverDataSeg.getType() == SegmentType.End;
+				if (serverDataSeg.getType() == SegmentType.Meta && isResumable()) {
+					// The Client Did Not Get The Reply To Its Meta Segment
+					Server.sendResumePoint(serverSocket, incomingPacket.getAddress(), incomingPacket.getPort(), writer.getResumedFrom(), getCodec());
+				} else if (isData && valid) {
+					Log.debug("SERVER: Calculated Checksum Is " + serverDataSeg.getChecksum() + "  VALID");
 
 					// If SeqNum Is Expected, Accept And Store Payload
 					if (serverDataSeg.getSeqNum() == expectedSeq) {
-						String[] lines = serverDataSeg.getPayLoad().split(";");
-						receivedLines.add("Segment ["+ serverDataSeg.getSeqNum() + "] has "+ lines.length + " Readings");
-						receivedLines.addAll(java.util.Arrays.asList(lines));
-						receivedLines.add("");
-
-						readingCount += lines.length;
+						if (serverDataSeg.getType() == SegmentType.End) {
+							endReceived = true;
+						} else {
+							readingCount += writer.append(serverDataSeg.getSeqNum(), serverDataSeg.getPayLoad());
+						}
 
 						// Useful Bytes Increased Only For The First-Time Accepted Segments
 						usefulBytes += serverDataSeg.getSize();
+						TransferMetrics.instance.segmentAccepted(serverDataSeg.getSize());
 
 						// Extract Client Address And Port
 						InetAddress iPAddress = incomingPacket.getAddress();
@@ -388,8 +502,8 @@ public class Protocol {
 
 						// Decide Whether To Simulate Ack Loss
 						if (isLost(loss)) {
-							System.out.println("SERVER: Simulating ACK Loss. ACK[SEQ#" + serverDataSeg.getSeqNum() + "] Is Lost.");
-							System.out.println("******************************");
+							Log.warn("SERVER: Simulating ACK Loss. ACK[SEQ#" + serverDataSeg.getSeqNum() + "] Is Lost.");
+							Log.debug("******************************");
 						} else {
 							// send ack normally
 							Server.sendAck(serverSocket, iPAddress, port, serverDataSeg.getSeqNum());
@@ -400,44 +514,51 @@ public class Protocol {
 
 					} else {
 						// Duplicate Data Segment
-						System.out.println("Duplicate DATA Is Detected");
-						System.out.println("Sending An Ack Of The Previous Segment");
+						Log.warn("Duplicate DATA Is Detected");
+						TransferMetrics.instance.duplicate();
+						Log.debug("Sending An Ack Of The Previous Segment");
 
 						// Resend Ack For Last Correct Seq (If Known)
 						InetAddress iPAddress = incomingPacket.getAddress();
 						int port = incomingPacket.getPort();
 						if (lastCorrectSeq >= 0) {
 							if (isLost(loss)) {
-								System.out.println("SERVER: Simulating ACK Loss. ACK[SEQ#" + lastCorrectSeq + "] Is Lost.");
-								System.out.println("******************************");
+								Log.warn("SERVER: Simulating ACK Loss. ACK[SEQ#" + lastCorrectSeq + "] Is Lost.");
+								Log.debug("******************************");
 							} else {
 								Server.sendAck(serverSocket, iPAddress, port, lastCorrectSeq);
 							}
 						}
 					}
 
-				} else if (serverDataSeg.getType() == SegmentType.Data && x != serverDataSeg.getChecksum()) {
-					System.out.println("SERVER: Calculated Checksum Is " + x + "  INVALID");
-					System.out.println("SERVER: Not Sending Any ACK ");
-					System.out.println("***************************");
+				} else if (isData && !valid) {
+					Log.warn("SERVER: Calculated Checksum Is " + serverDataSeg.getChecksum() + "  INVALID");
+					TransferMetrics.instance.checksumFailure();
+					Log.debug("SERVER: Not Sending Any ACK ");
+					Log.debug("***************************");
 				}
 
-				// If All Readings Are Received, Then Write The Readings To The File And Finish
-				if (this.getOutputFileName() != null && readingCount >= this.getFileTotalReadings()) {
-					Server.writeReadingsToFile(receivedLines, this.getOutputFileName());
+				// If All Readings Are Received, Then Finish Writing The File And Stop
+				if (this.getOutputFileName() != null && isComplete(readingCount, endReceived)) {
+					writer.markComplete();
+					writer.close();
+					writer = null;
 					break;
 				}
 			}
 
 		} catch (IOException e) {
-			System.out.println("SERVER: Error: " + e.getMessage());
+			Log.error("SERVER: Error: " + e.getMessage());
 		} finally {
+			// Keep Whatever Arrived Before The Client Gave Up
+			closeQuietly(writer);
+
 			// Compute And Print Efficiency If Some Useful Bytes Were Recorded
 			if (totalBytesReceived > 0) {
-				System.out.println("Total Bytes :" + totalBytesReceived);
-				System.out.println("Useful Bytes :" + usefulBytes);
+				Log.info("Total Bytes :" + totalBytesReceived);
+				Log.info("Useful Bytes :" + usefulBytes);
 				double efficiency = ((double) usefulBytes / (double) totalBytesReceived) * 100.0;
-				System.out.println("Efficiency : " + efficiency + " %");
+				Log.info("Efficiency : " + efficiency + " %");
 			}
 
 			try { serverSocket.close(); } catch (Exception ex) {}
@@ -445,6 +566,346 @@ public class Protocol {
 	}
 
 
+	/* 
+	 * This method is used by the server to receive Data segments in selective repeat mode.
+	 * Segments inside the receive window are acknowledged individually and buffered, and are released
+	 * to the output in sequence order once the gap before them is filled.
+	 */
+	public void receiveSelectiveRepeat(DatagramSocket serverSocket, float loss) {
+		byte[] buf = new byte[getReceiveBufferSize()];
+
+		// Readings Are Appended To The Output File In Order As The Window Releases Them
+		ReadingWriter writer = null;
+		ReceiveWindow window = new ReceiveWindow(getIntOption("window", DEFAULT_WINDOW));
+		int readingCount = 0;
+		boolean endReceived = false;
+		boolean complete = false;
+
+		Log.info("SERVER: Waiting For Data With A Receive Window Of " + window.getWindowSize() + " Segments");
+
+		try {
+			writer = openWriter();
+			ReadingWriter.Checkpoint resumedFrom = writer.getResumedFrom();
+			readingCount = (int) resumedFrom.readings;
+			AckSender acks = new AckSender("SERVER", serverSocket, getCodec(), getChecksum(), SACK.equals(getOption("ack", "")), getIntOption("delack", 1), window.getWindowSize(), loss);
+
+			DatagramPacket incomingPacket = new DatagramPacket(buf, buf.length);
+			while (true) {
+				incomingPacket.setLength(buf.length);
+				try {
+					// Waits No Longer Than A Delayed Ack May Be Held Back
+					acks.receive(incomingPacket);
+				} catch (java.net.SocketTimeoutException ste) {
+					// Only Reached While Lingering After The Transfer Completed
+					Log.info("SERVER: No Packets Received For " + LINGER_TIMEOUT + "ms. Exiting.");
+					break;
+				}
+
+				Segment serverDataSeg;
+				try {
+					serverDataSeg = SegmentCodec.decode(incomingPacket, getChecksum());
+				} catch (IOException e) {
+					Log.warn("SERVER: Dropping Undecodable Segment: " + e.getMessage());
+					continue;
+				}
+
+				if (Log.isDebug()) Log.debug("SERVER: Receive: DATA [SEQ#"+ serverDataSeg.getSeqNum()+ "]("+"size:"+serverDataSeg.getSize()+", crc: "+serverDataSeg.getChecksum()+", content:"  + serverDataSeg.getPayLoad()+")");
+
+				boolean valid = serverDataSeg.isValid();
+				if (serverDataSeg.getType() == SegmentType.Meta && isResumable()) {
+					// The Client Did Not Get The Reply To Its Meta Segment
+					Server.sendResumePoint(serverSocket, incomingPacket.getAddress(), incomingPacket.getPort(), resumedFrom, getCodec());
+					continue;
+				}
+				if (serverDataSeg.getType() != SegmentType.Data && serverDataSeg.getType() != SegmentType.End) continue;
+				TransferMetrics.instance.segmentReceived(incomingPacket.getLength());
+				if (!valid) {
+					Log.warn("SERVER: Calculated Checksum Is " + serverDataSeg.getChecksum() + "  INVALID");
+					TransferMetrics.instance.checksumFailure();
+					Log.debug("SERVER: Not Sending Any ACK ");
+					Log.debug("***************************");
+					continue;
+				}
+
+				Log.debug("SERVER: Calculated Checksum Is " + serverDataSeg.getChecksum() + "  VALID");
+
+				// Duplicates Are Re-Acked; Segments Beyond The Window Are Dropped Without An Ack So The Client Resends Them Later
+				boolean duplicate = window.isDuplicate(serverDataSeg.getSeqNum());
+				if (duplicate) {
+					Log.warn("Duplicate DATA Is Detected");
+					TransferMetrics.instance.duplicate();
+				} else if (!window.offer(serverDataSeg)) {
+					Log.warn("SERVER: DATA [SEQ#" + serverDataSeg.getSeqNum() + "] Is Outside The Receive Window. Dropped.");
+					continue;
+				} else {
+					TransferMetrics.instance.segmentAccepted(serverDataSeg.getSize());
+				}
+
+				// Release Every Segment That Is Now In Order
+				for (Segment ready : window.drain()) {
+					if (ready.getType() == SegmentType.End) {
+						endReceived = true;
+						continue;
+					}
+					readingCount += writer.append(ready.getSeqNum(), ready.getPayLoad());
+				}
+
+				// With ack=sack One Ack Covers Everything Delivered So Far Plus Every Buffered Segment Beyond The Gap
+				// (And With delack=<n> It May Wait For More Segments First)
+				boolean completes = !complete && this.getOutputFileName() != null && isComplete(readingCount, endReceived);
+				acks.ack(incomingPacket.getAddress(), incomingPacket.getPort(), serverDataSeg.getSeqNum(), window, duplicate || completes);
+
+				// Close The File Once Every Reading Has Arrived, Then Linger To Re-Ack Retransmissions Of Lost Final Acks
+				if (!complete && this.getOutputFileName() != null && isComplete(readingCount, endReceived)) {
+					writer.markComplete();
+					writer.close();
+					writer = null;
+					complete = true;
+					serverSocket.setSoTimeout(LINGER_TIMEOUT);
+				}
+			}
+		} catch (IOException e) {
+			Log.error("SERVER: Error: " + e.getMessage());
+		} finally {
+			closeQuietly(writer);
+			try { serverSocket.close(); } catch (Exception ex) {}
+		}
+	}
+
+
+	/* 
+	 * Opens the write-behind output file, flushed as the flush=<segment|ms|end> option says
+	 */
+	ReadingWriter openWriter() throws IOException {
+		return openWriter(this.getOutputFileName(), this.options);
+	}
+
+	/* 
+	 * Opens the output file of a transfer with the given options; a resumable transfer (resume=on)
+	 * continues from its checkpoint, which is refreshed every CHECKPOINT_INTERVAL ms unless flush= says otherwise;
+	 * with the server's store=on option the readings are also kept in a columnar ReadingStore, and with
+	 * format=indexed they are written as an IndexedReadingFile (which is never resumed)
+	 */
+	static ReadingWriter openWriter(String outputFileName, Map<String, String> transferOptions) throws IOException {
+		boolean resumable = "on".equals(transferOptions.get("resume"));
+		String flush = instance.getOption("flush", resumable ? ReadingWriter.CHECKPOINT_INTERVAL : ReadingWriter.AT_END);
+		ReadingStore store = "on".equals(instance.getOption("store", "off")) ? new ReadingStore(outputFileName) : null;
+		boolean indexed = ReadingWriter.INDEXED.equals(instance.getOption("format", ReadingWriter.TEXT));
+		if (indexed && resumable) {
+			Log.warn("SERVER: An Indexed Output File Cannot Be Resumed, Receiving " + outputFileName + " From The Start");
+			resumable = false;
+		}
+		return new ReadingWriter(outputFileName, flush, resumable, store, indexed);
+	}
+
+	/* 
+	 * Closes the output of an unfinished transfer, so the readings received so far stay on disk
+	 */
+	static void closeQuietly(ReadingWriter writer) {
+		if (writer == null) return;
+		try {
+			writer.close();
+		} catch (IOException e) {
+			Log.error("SERVER: Error Writing Output: " + e.getMessage());
+		}
+	}
+
+	/* 
+	 * The server's completion check: every reading announced in the Meta segment has arrived, or, when the
+	 * Meta segment left the total unknown, the End segment has been accepted in order
+	 */
+	boolean isComplete(int readingCount, boolean endReceived) {
+		return this.fileTotalReadings == UNKNOWN_TOTAL ? endReceived : readingCount >= this.fileTotalReadings;
+	}
+
+	/* 
+	 * Parses one CSV line (sensorId,timestamp,value1,value2,value3) and appends its Reading to the payload,
+	 * separated from earlier readings by ';'. Returns false (and reports the line) if the line is malformed.
+	 */
+	static boolean appendReading(StringBuilder payload, String line) {
+		String reading = formatReading(line);
+		if (reading == null) return false;
+		if (payload.length() > 0) payload.append(";");
+		payload.append(reading);
+		return true;
+	}
+
+	/* 
+	 * Parses one CSV line into the Reading.toString() form carried in payloads; null (reported) if it is malformed
+	 */
+	static String formatReading(String line) {
+		String reading = parseReading(line);
+		if (reading == null) Log.warn("CLIENT: Invalid CSV Line: " + line);
+		return reading;
+	}
+
+	/* 
+	 * Parses one CSV line (sensorId,timestamp,value1,value2,value3) into the Reading.toString() form; null if it
+	 * is malformed, which the caller reports (the parallel parser reports lines in file order, see CsvCursor)
+	 */
+	static String parseReading(String line) {
+		String[] parts = line.split(",");
+		if (parts.length < 5) return null;
+		try {
+			String sensorId = parts[0].trim();
+			long timestamp = Long.parseLong(parts[1].trim());
+			float[] values = new float[3];
+			values[0] = Float.parseFloat(parts[2].trim());
+			values[1] = Float.parseFloat(parts[3].trim());
+			values[2] = Float.parseFloat(parts[4].trim());
+			Reading r = new Reading(sensorId, timestamp, values);
+			return r.toString();
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/* 
+	 * Reads the optional key=value settings that follow the mode on the command line (e.g. window=16)
+	 */
+	public void initOptions(String[] args, int first) {
+		for (int i = first; i < args.length; i++) {
+			int eq = args[i].indexOf('=');
+			if (eq <= 0) {
+				Log.warn("Ignoring Option " + args[i] + " (Expected <name>=<value>)");
+				continue;
+			}
+			setOption(args[i].substring(0, eq), args[i].substring(eq + 1));
+		}
+		// An Unknown checksum= Name, A window= Below 1 Or A Malformed pipeline= Is Rejected Before Any Segment Is Sent Or Received
+		String checksum = getOption("checksum", null);
+		if (checksum != null) SegmentChecksum.named(checksum);
+		String window = getOption("window", null);
+		if (window != null) parseWindow(window);
+		this.pipelineDepth = SegmentPipeline.parseDepth(getOption("pipeline", "off"));
+	}
+
+	/* the window=<n> option as a number of segments; a window of less than one segment could never send */
+	static int parseWindow(String value) {
+		int window;
+		try {
+			window = Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid window=" + value + " (Expected A Number Of Segments)");
+		}
+		if (window < 1) throw new IllegalArgumentException("Invalid window=" + value + " (Must Be At Least 1)");
+		return window;
+	}
+
+	/* 
+	 * Builds the ",key=value" suffix of the Meta payload from the options the server must agree on
+	 */
+	String metaOptions() {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, String> e : options.entrySet()) {
+			if (META_OPTIONS.contains(e.getKey())) sb.append(',').append(e.getKey()).append('=').append(e.getValue());
+		}
+		return sb.toString();
+	}
+
+	public String getOption(String key, String defaultValue) {
+		return options.getOrDefault(key, defaultValue);
+	}
+
+	/* resume=on: the server keeps a checkpoint and a restarted transfer continues from it */
+	public boolean isResumable() {
+		return "on".equals(getOption("resume", "off"));
+	}
+
+	/* 
+	 * The payload bytes a Data segment may carry under budget=<bytes|mtu>: the datagram budget minus the
+	 * codec's encoding overhead. Without a budget there is no byte limit and patch size alone decides.
+	 */
+	public int getPayloadBudget() {
+		String budget = getOption("budget", null);
+		if (budget == null) return Integer.MAX_VALUE;
+		int datagramBudget = Math.min(MAX_DATAGRAM_SIZE, "mtu".equals(budget) ? MTU_BUDGET : Integer.parseInt(budget));
+		// A Resumable Transfer Also Tags Each Payload With Its CSV Offset
+		if (isResumable()) datagramBudget -= ReadingWriter.MAX_TAG_LENGTH;
+		try {
+			// The Overhead Of Either Codec Does Not Depend On The Payload, So Measure It Once On An Empty Segment
+			int overhead = SegmentCodec.encode(new Segment(0, SegmentType.Data, "", 0), getCodec(), getChecksum()).length;
+			return Math.max(1, datagramBudget - overhead);
+		} catch (IOException e) {
+			throw new IllegalStateException("Cannot Measure Codec Overhead: " + e.getMessage(), e);
+		}
+	}
+
+	/* 
+	 * The receive buffer the server needs for the datagrams of this transfer (the budget may exceed MAX_Segment_SIZE)
+	 */
+	public int getReceiveBufferSize() {
+		String budget = getOption("budget", null);
+		if (budget == null) return MAX_Segment_SIZE;
+		int datagramBudget = "mtu".equals(budget) ? MTU_BUDGET : Math.min(MAX_DATAGRAM_SIZE, Integer.parseInt(budget));
+		return Math.max(MAX_Segment_SIZE, datagramBudget);
+	}
+
+	/* the retransmission timeout estimator, adaptive unless rto=fixed was given */
+	public RttEstimator getRttEstimator() {
+		if (this.rttEstimator == null) this.rttEstimator = newRttEstimator();
+		return this.rttEstimator;
+	}
+
+	/* a new estimator for a flow of its own (each stripe of a striped transfer measures its own round trip time) */
+	public RttEstimator newRttEstimator() {
+		RttEstimator estimator = new RttEstimator(this.timeout, !"fixed".equals(getOption("rto", "adaptive")));
+		// With delack=<n> The Server May Hold An Ack Back, So That Wait Is Not Taken For A Loss
+		if (getIntOption("delack", 1) > 1) estimator.setAckDelay(AckSender.DELAYED_ACK_TIMEOUT);
+		return estimator;
+	}
+
+	/* a socket backed by a DatagramChannel, so the nio transport can later take over the same local port */
+	private static DatagramSocket openChannelSocket() throws SocketException {
+		try {
+			return DatagramChannel.open().socket();
+		} catch (IOException e) {
+			throw new SocketException("Cannot Open Datagram Channel: " + e.getMessage());
+		}
+	}
+
+	/* a new client socket of the kind the transport=<socket|nio> option asks for */
+	public DatagramSocket openSocket() throws SocketException {
+		return "nio".equals(getOption("transport", "socket")) ? openChannelSocket() : new DatagramSocket();
+	}
+
+	/* the transport used by the selective repeat sender: transport=nio or the plain socket */
+	public Transport openTransport() throws IOException {
+		return openTransport(this.socket, this.portNumber);
+	}
+
+	/* a transport sending through the given client socket to the given server port */
+	public Transport openTransport(DatagramSocket socket, int port) throws IOException {
+		DatagramChannel channel = socket.getChannel();
+		if (channel != null) return new ChannelTransport(channel, this.ipAddress, port, getCodec(), getChecksum(), getReceiveBufferSize());
+		return new SocketTransport(socket, this.ipAddress, port, getCodec(), getChecksum(), getReceiveBufferSize());
+	}
+
+	/* true for the client modes sent with a sliding window (sr, and cc which adds congestion control) */
+	static boolean isSlidingMode(String mode) {
+		return SLIDING_MODE.equals(mode) || CONGESTION_MODE.equals(mode);
+	}
+
+	/* the wire codec for segments (SegmentCodec.JAVA unless codec=bin was given) */
+	public String getCodec() {
+		return getOption("codec", SegmentCodec.JAVA);
+	}
+
+	/* the checksum algorithm of this flow (CRC-32 unless checksum= was given, or negotiated in the Meta segment) */
+	public SegmentChecksum getChecksum() {
+		return SegmentChecksum.named(getOption("checksum", SegmentChecksum.CRC_32.getName()));
+	}
+
+	public int getIntOption(String key, int defaultValue) {
+		String value = options.get(key);
+		return value == null ? defaultValue : Integer.parseInt(value);
+	}
+
+	public void setOption(String key, String value) {
+		options.put(key, value);
+	}
+
+
 	/*************************************************************************************************************************************
 	 **************************************************************************************************************************************
 	 **************************************************************************************************************************************
@@ -458,9 +919,10 @@ public class Protocol {
 	public void initProtocol(String hostName , String portNumber, String fileName, String outputFileName, String batchSize) throws UnknownHostException, SocketException {
 		instance.ipAddress = InetAddress.getByName(hostName);
 		instance.portNumber = Integer.parseInt(portNumber);
-		instance.socket = new DatagramSocket();
+		instance.socket = openSocket();
 
-		instance.inputFile = checkFile(fileName); //check if the CSV file does exist
+		//check if the CSV file does exist (a live stream may read standard input instead)
+		instance.inputFile = instance.getIntOption("tail", 0) > 0 && TailReader.STDIN.equals(fileName) ? new File(fileName) : checkFile(fileName);
 		instance.outputFileName =  outputFileName;
 		instance.maxPatchSize= Integer.parseInt(batchSize);
 
@@ -484,8 +946,8 @@ public class Protocol {
 	{
 		File file = new File(fileName);
 		if(!file.exists()) {
-			System.out.println("CLIENT: File Does Not Exist"); 
-			System.out.println("CLIENT: Exit."); 
+			Log.error("CLIENT: File Does Not Exist"); 
+			Log.error("CLIENT: Exit."); 
 			System.exit(0);
 		}
 		return file;
@@ -494,7 +956,7 @@ public class Protocol {
 	/* 
 	 * returns true with the given probability to simulate network errors (Ack loss)(for Part 4)
 	 */
-	private static Boolean isLost(float prob) 
+	static Boolean isLost(float prob) 
 	{ 
 		double randomValue = Math.random();  //0.0 to 99.9
 		return randomValue <= prob;
@@ -529,6 +991,7 @@ public class Protocol {
 
 	public void setDataSeg(Segment dataSeg) {
 		this.dataSeg = dataSeg;
+		this.dataSegPacket = null;
 	}
 
 	public void setAckSeg(Segment ackSeg) {
@@ -539,4 +1002,36 @@ public class Protocol {
 		this.currRetry = currRetry;
 	}
 
+	public InetAddress getIpAddress() {
+		return ipAddress;
+	}
+
+	public int getPortNumber() {
+		return portNumber;
+	}
+
+	public DatagramSocket getSocket() {
+		return socket;
+	}
+
+	public File getInputFile() {
+		return inputFile;
+	}
+
+	public int getTimeout() {
+		return timeout;
+	}
+
+	public int getMaxRetries() {
+		return maxRetries;
+	}
+
+	public int getSentReadings() {
+		return sentReadings;
+	}
+
+	public long getAckedOffset() {
+		return ackedOffset;
+	}
+
 }
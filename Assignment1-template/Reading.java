@@ -21,4 +21,4 @@ public class Reading {
 	public String toString() {
 		return sensorId + "," + timestamp + "," + Arrays.toString(values);
 	}
-}
\ No newline at end of file
+}
\ No newline at end of file
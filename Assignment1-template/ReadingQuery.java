@@ -0,0 +1,51 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/*
+ * Looks up readings in an output file written with format=indexed (see IndexedReadingFile).
+ * Only the blocks whose index entry says they can hold a matching reading are mapped and read.
+ *
+ * To run: java ReadingQuery <indexed output file> [option=value ...]
+ *      sensor=<id>     only the readings of this sensor (default: every sensor)
+ *      from=<time>     only readings with a timestamp >= time (UNIX seconds, default: the earliest)
+ *      to=<time>       only readings with a timestamp <= time (default: the latest)
+ *      print=off       only report how many readings match and how many blocks were read
+ *
+ * Matching readings are printed in file order, one per line, in the form of Reading.toString().
+ */
+public class ReadingQuery {
+
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			System.err.println("Usage: java ReadingQuery <indexed output file> [sensor=<id>] [from=<time>] [to=<time>] [print=off]");
+			System.exit(1);
+		}
+		Protocol.instance.initOptions(args, 1);
+		String sensorId = Protocol.instance.getOption("sensor", null);
+		long from = Long.parseLong(Protocol.instance.getOption("from", Long.toString(Long.MIN_VALUE)));
+		long to = Long.parseLong(Protocol.instance.getOption("to", Long.toString(Long.MAX_VALUE)));
+		boolean print = !"off".equals(Protocol.instance.getOption("print", "on"));
+
+		// Readings Are Written Straight To One 64 KB Buffered Stream (Flushed Once At The End, Not Per Line), So None Are Held In Memory
+		PrintStream out = new PrintStream(new BufferedOutputStream(System.out, 1 << 16), false);
+		ReadingSink printer = (id, timestamp, value1, value2, value3) -> {
+			if (print) out.append(id).append(',').append(Long.toString(timestamp)).append(',').append(Arrays.toString(new float[] {value1, value2, value3})).append('\n');
+		};
+
+		long start = System.nanoTime();
+		try (IndexedReadingFile file = new IndexedReadingFile(Paths.get(args[0]))) {
+			IndexedReadingFile.QueryStats stats = file.query(sensorId, from, to, printer);
+			long micros = (System.nanoTime() - start) / 1000;
+			out.println("QUERY: " + stats.matches + " Of " + file.getReadingCount() + " Readings Match; Read "
+					+ stats.blocksRead + " Of " + file.getBlockCount() + " Blocks (" + stats.blocksSkipped + " Skipped) In " + micros + "us");
+			out.flush();
+		} catch (IOException e) {
+			out.flush();
+			System.err.println("QUERY: Error: " + e.getMessage());
+			System.exit(1);
+		}
+	}
+}
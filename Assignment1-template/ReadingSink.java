@@ -0,0 +1,7 @@
+/*
+ * Takes readings decoded into their fields: the columnar ReadingStore, the blocks of an indexed output
+ * file, or the output of a query over one. ReadingStore.parse decodes a payload reading into a sink.
+ */
+public interface ReadingSink {
+	void add(String sensorId, long timestamp, float value1, float value2, float value3);
+}
@@ -0,0 +1,221 @@
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/*
+ * Columnar, off-heap store for the readings a server has received (store=on).
+ *
+ * Each reading is decoded into primitive columns instead of being kept as a String: the sensorId as a
+ * code into a dictionary of the distinct ids, the timestamp as a long and the three values as floats,
+ * 24 bytes a reading. The columns live in direct buffers allocated in chunks of CHUNK_ROWS readings
+ * (one buffer per chunk, holding one region per column), so the store grows without copying and the
+ * readings add nothing for the garbage collector to trace.
+ *
+ * A store has one writer (the ReadingWriter thread of a transfer). Readers on other threads see every
+ * reading counted by size(), as the count is published after the reading is written. The ReadingWriter
+ * owns its store: when the transfer ends it reads the columns back for a per-sensor summary (see summarize)
+ * and then closes the store, which lets go of its chunks.
+ */
+public final class ReadingStore implements ReadingSink, Closeable {
+
+	static final int CHUNK_ROWS = 1 << 16;                  // readings per chunk
+	static final int VALUES = 3;                            // temperature, humidity, pressure
+	static final int ROW_BYTES = 4 + 8 + 4 * VALUES;        // sensor code, timestamp, values
+
+	// Column Regions Within A Chunk
+	private static final int SENSOR_COLUMN = 0;
+	private static final int TIMESTAMP_COLUMN = SENSOR_COLUMN + 4 * CHUNK_ROWS;
+	private static final int VALUE_COLUMNS = TIMESTAMP_COLUMN + 8 * CHUNK_ROWS;
+
+	private final String name;
+	private final List<ByteBuffer> chunks = new ArrayList<>();     // guarded by itself, as are sensorIds
+	private ByteBuffer current;                             // the chunk being filled (writer only)
+	private final Map<String, Integer> sensorCodes = new HashMap<>(); // writer only
+	private final List<String> sensorIds = new ArrayList<>();
+	private volatile long size;                             // readings stored (published after each one is written)
+
+	/* constructor, named after the output file of its transfer */
+	public ReadingStore(String name) {
+		this.name = name;
+	}
+
+	/* adds one reading */
+	@Override
+	public void add(String sensorId, long timestamp, float value1, float value2, float value3) {
+		long row = size;
+		int index = (int) (row & (CHUNK_ROWS - 1));
+		if (index == 0) {
+			current = ByteBuffer.allocateDirect(CHUNK_ROWS * ROW_BYTES).order(ByteOrder.nativeOrder());
+			synchronized (chunks) {
+				chunks.add(current);
+			}
+		}
+		current.putInt(SENSOR_COLUMN + 4 * index, sensorCode(sensorId));
+		current.putLong(TIMESTAMP_COLUMN + 8 * index, timestamp);
+		current.putFloat(valueOffset(index, 0), value1);
+		current.putFloat(valueOffset(index, 1), value2);
+		current.putFloat(valueOffset(index, 2), value3);
+		size = row + 1;
+	}
+
+	/* adds a reading in the form the client puts it in the payload; false if the line is not in that form */
+	public boolean addFormatted(String line) {
+		return parse(line, this);
+	}
+
+	/*
+	 * decodes a reading in the form the client puts it in the payload (Reading.toString()), e.g.
+	 * A,1720456123,[4.0, 84.74, 1020.6], into the sink; returns false (and adds nothing) if the line is not in that form
+	 */
+	public static boolean parse(String line, ReadingSink sink) {
+		int comma = line.indexOf(',');
+		int open = line.indexOf('[', comma + 1);
+		int close = line.lastIndexOf(']');
+		if (comma <= 0 || open < 0 || close < open) return false;
+		try {
+			long timestamp = Long.parseLong(line.substring(comma + 1, open - 1).trim());
+			int first = line.indexOf(',', open);
+			int second = line.indexOf(',', first + 1);
+			if (first < 0 || second < 0) return false;
+			sink.add(line.substring(0, comma),
+					timestamp,
+					Float.parseFloat(line.substring(open + 1, first)),
+					Float.parseFloat(line.substring(first + 1, second)),
+					Float.parseFloat(line.substring(second + 1, close)));
+			return true;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	/* the dictionary code of a sensorId, adding it on first sight */
+	private int sensorCode(String sensorId) {
+		Integer code = sensorCodes.get(sensorId);
+		if (code == null) {
+			synchronized (chunks) {
+				code = sensorIds.size();
+				sensorIds.add(sensorId);
+			}
+			sensorCodes.put(sensorId, code);
+		}
+		return code;
+	}
+
+	private static int valueOffset(int index, int column) {
+		return VALUE_COLUMNS + 4 * (column * CHUNK_ROWS + index);
+	}
+
+	/* column accessors for row 0 .. size() - 1 */
+	public int sensorCode(long row) {
+		return chunk(row).getInt(SENSOR_COLUMN + 4 * index(row));
+	}
+	public String sensorId(long row) {
+		return sensorName(sensorCode(row));
+	}
+	public long timestamp(long row) {
+		return chunk(row).getLong(TIMESTAMP_COLUMN + 8 * index(row));
+	}
+	public float value(long row, int column) {
+		return chunk(row).getFloat(valueOffset(index(row), column));
+	}
+
+	private ByteBuffer chunk(long row) {
+		if (row < 0 || row >= size) throw new IndexOutOfBoundsException("Row " + row + " Of " + size);
+		synchronized (chunks) {
+			return chunks.get((int) (row / CHUNK_ROWS));
+		}
+	}
+
+	private static int index(long row) {
+		return (int) (row & (CHUNK_ROWS - 1));
+	}
+
+	/* replays the stored readings, in the order they were added, into the sink (reading the columns a chunk at a time) */
+	public void scan(ReadingSink sink) {
+		long rows = size;
+		List<ByteBuffer> snapshot;
+		List<String> ids;
+		synchronized (chunks) {
+			snapshot = new ArrayList<>(chunks);
+			ids = new ArrayList<>(sensorIds);
+		}
+		for (long row = 0; row < rows; row++) {
+			ByteBuffer chunk = snapshot.get((int) (row / CHUNK_ROWS));
+			int index = index(row);
+			sink.add(ids.get(chunk.getInt(SENSOR_COLUMN + 4 * index)),
+					chunk.getLong(TIMESTAMP_COLUMN + 8 * index),
+					chunk.getFloat(valueOffset(index, 0)),
+					chunk.getFloat(valueOffset(index, 1)),
+					chunk.getFloat(valueOffset(index, 2)));
+		}
+	}
+
+	/* one line per sensor (in order of first appearance): its reading count, timestamp range and mean values */
+	public List<String> summarize() {
+		Map<String, double[]> totals = new LinkedHashMap<>();  // count, first, last timestamp, then the value sums
+		scan((sensorId, timestamp, value1, value2, value3) -> {
+			double[] t = totals.computeIfAbsent(sensorId, k -> new double[] {0, Double.MAX_VALUE, -Double.MAX_VALUE, 0, 0, 0});
+			t[0]++;
+			t[1] = Math.min(t[1], timestamp);
+			t[2] = Math.max(t[2], timestamp);
+			t[3] += value1;
+			t[4] += value2;
+			t[5] += value3;
+		});
+		List<String> lines = new ArrayList<>();
+		for (Map.Entry<String, double[]> e : totals.entrySet()) {
+			double[] t = e.getValue();
+			lines.add(String.format(Locale.ROOT, "%s: %d Readings, Timestamps %d..%d, Mean [%.2f, %.2f, %.2f]",
+					e.getKey(), (long) t[0], (long) t[1], (long) t[2], t[3] / t[0], t[4] / t[0], t[5] / t[0]));
+		}
+		return lines;
+	}
+
+	/* empties the store; its chunks are freed once nothing refers to them */
+	@Override
+	public void close() {
+		size = 0;
+		current = null;
+		sensorCodes.clear();
+		synchronized (chunks) {
+			chunks.clear();
+			sensorIds.clear();
+		}
+	}
+
+	/* the sensorId of a dictionary code */
+	public String sensorName(int code) {
+		synchronized (chunks) {
+			return sensorIds.get(code);
+		}
+	}
+
+	/* getter methods */
+	public String getName() {
+		return name;
+	}
+	public long size() {
+		return size;
+	}
+	public int sensorCount() {
+		synchronized (chunks) {
+			return sensorIds.size();
+		}
+	}
+	public long offHeapBytes() {
+		synchronized (chunks) {
+			return (long) chunks.size() * CHUNK_ROWS * ROW_BYTES;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return size + " Readings Of " + sensorCount() + " Sensors In " + (offHeapBytes() >> 10) + " KB Off-Heap";
+	}
+}
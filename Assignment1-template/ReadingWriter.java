@@ -0,0 +1,361 @@
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Write-behind output stage for the server.
+ * Each accepted segment is handed to a writer thread through a bounded queue and appended to the output
+ * file in the same layout Server.writeReadingsToFile uses. The receive loop therefore never waits for the
+ * disk, and heap use does not grow with the size of the transfer.
+ *
+ * The flush=<policy> option decides when the data is forced to disk:
+ *   segment - flush and fsync after every segment
+ *   <n>     - flush and fsync at most every n milliseconds
+ *   end     - only when the transfer is complete (the default)
+ *
+ * A resumable writer (resume=on) also keeps a checkpoint next to the output file (<output>.ckpt): after
+ * every forced write it records how many readings are on disk, the output file length holding them and
+ * the byte offset in the client's CSV file just past them (the client tags each payload with that offset,
+ * see tagOffset). A new resumable writer for the same file truncates it to the checkpointed length and
+ * appends from there, and the client continues from the checkpointed offset. The checkpoint is deleted
+ * once the transfer is complete.
+ *
+ * With format=indexed the readings are decoded and written as an IndexedReadingFile instead of as text,
+ * so a query for one sensor or a time range only reads the blocks that can hold it (see ReadingQuery).
+ * The blocks are buffered until they are full, so an indexed writer is never resumable.
+ */
+public class ReadingWriter implements Closeable {
+
+	static final String PER_SEGMENT = "segment";    // fsync after every segment
+	static final String AT_END = "end";             // fsync once, on close
+	static final int QUEUE_CAPACITY = 1024;         // segments waiting for the writer thread before append blocks
+	static final int ENQUEUE_POLL_MS = 100;         // how often a blocked append or close checks that the writer thread is alive
+	static final String CHECKPOINT_INTERVAL = "1000"; // the flush policy of a resumable writer unless flush= says otherwise
+	static final String CHECKPOINT_SUFFIX = ".ckpt";
+	static final char OFFSET_TAG = '#';              // a tagged payload is #<offset>|<readings>
+	static final char OFFSET_END = '|';
+	static final int MAX_TAG_LENGTH = 21;            // '#', up to 19 digits and '|'
+	static final String RESUME_PREFIX = "resume=";   // the server's Meta reply to a resumable client
+	static final String TEXT = "text";              // format=text: the layout of Server.writeReadingsToFile (the default)
+	static final String INDEXED = "indexed";        // format=indexed: see IndexedReadingFile
+	static final long LOCK_TIMEOUT = Protocol.IDLE_TIMEOUT * 2L; // how long a resumed transfer waits for the previous writer of its file
+	static final int SUMMARY_SENSORS = 20;          // sensors listed when a store=on transfer ends
+
+	// Output Files Being Written By A Resumable Writer (Only One May Append To A File At A Time)
+	private static final Map<String, Semaphore> busyFiles = new ConcurrentHashMap<>();
+
+	/* the durable progress of a resumable transfer */
+	static class Checkpoint {
+		static final Checkpoint NONE = new Checkpoint(0, 0, 0);
+
+		final long readings;    // readings in the output file
+		final long offset;      // byte offset in the client's CSV file just past those readings
+		final long length;      // length of the output file holding them
+
+		Checkpoint(long readings, long offset, long length) {
+			this.readings = readings;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		/* the checkpoint of an output file, or NONE if there is none (or it cannot be read, or the file is shorter) */
+		static Checkpoint read(String outputFileName) {
+			Path path = Paths.get(outputFileName + CHECKPOINT_SUFFIX);
+			if (!Files.exists(path)) return NONE;
+			try {
+				String[] parts = new String(Files.readAllBytes(path), StandardCharsets.US_ASCII).trim().split(",");
+				Checkpoint checkpoint = new Checkpoint(Long.parseLong(parts[0]), Long.parseLong(parts[1]), Long.parseLong(parts[2]));
+				return new File(outputFileName).length() >= checkpoint.length ? checkpoint : NONE;
+			} catch (IOException | RuntimeException e) {
+				Log.warn("SERVER: Ignoring Unreadable Checkpoint " + path + ": " + e.getMessage());
+				return NONE;
+			}
+		}
+
+		/* replaces the checkpoint atomically, so a crash leaves either the old or the new one */
+		void write(String outputFileName) throws IOException {
+			Path path = Paths.get(outputFileName + CHECKPOINT_SUFFIX);
+			Path tmp = Paths.get(outputFileName + CHECKPOINT_SUFFIX + ".tmp");
+			try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				channel.write(ByteBuffer.wrap((readings + "," + offset + "," + length + "\n").getBytes(StandardCharsets.US_ASCII)));
+				channel.force(true);
+			}
+			Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+
+		@Override
+		public String toString() {
+			return readings + " Readings, CSV Offset " + offset + ", Output Length " + length;
+		}
+	}
+
+	/* one segment's readings waiting to be written */
+	private static class Entry {
+		final int seqNum;
+		final String[] lines;
+		final long offset;      // the CSV offset the payload was tagged with, or -1
+		final int stripe;       // the stripe of a striped transfer the segment belongs to, or -1
+
+		Entry(int seqNum, String[] lines, long offset, int stripe) {
+			this.seqNum = seqNum;
+			this.lines = lines;
+			this.offset = offset;
+			this.stripe = stripe;
+		}
+	}
+
+	private static final Entry CLOSE = new Entry(-1, null, -1, -1);   // tells the writer thread to finish
+
+	private final String outputFileName;
+	private final FileOutputStream file;
+	private final BufferedWriter writer;
+	private final long flushIntervalNanos;          // 0 = every segment, Long.MAX_VALUE = only at the end
+	private final BlockingQueue<Entry> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+	private final Thread thread;
+	private volatile IOException failure;           // the first write error, reported to the receive loop
+	private final Semaphore busy;                   // held while a resumable writer appends to the file, else null
+	private final Checkpoint resumedFrom;           // where the output file was continued from (NONE for a new file)
+	private long readings;                          // readings written so far, including resumed ones (writer thread)
+	private long offset;                            // CSV offset of the last tagged segment written (writer thread)
+	private volatile boolean complete;              // every reading arrived, so the checkpoint is no longer needed
+	private final ReadingStore store;               // columnar copy of the readings (store=on), else null
+	private final IndexedReadingFile.Writer indexed; // the output in the indexed format, else null (text)
+
+	/* constructor, creating (or truncating) the output file and starting the writer thread */
+	public ReadingWriter(String outputFileName, String flushPolicy) throws IOException {
+		this(outputFileName, flushPolicy, false);
+	}
+
+	/* constructor; a resumable writer continues the output file from its checkpoint, if it has one */
+	public ReadingWriter(String outputFileName, String flushPolicy, boolean resumable) throws IOException {
+		this(outputFileName, flushPolicy, resumable, null, false);
+	}
+
+	/*
+	 * constructor; with a store, the writer thread also decodes every reading it writes into the store, and
+	 * an indexed writer writes the output file as an IndexedReadingFile (it cannot also be resumable)
+	 */
+	public ReadingWriter(String outputFileName, String flushPolicy, boolean resumable, ReadingStore store, boolean indexed) throws IOException {
+		if (resumable && indexed) throw new IllegalArgumentException("An Indexed Output File Cannot Be Resumed");
+		this.outputFileName = outputFileName;
+		this.store = store;
+		this.busy = resumable ? lock(outputFileName) : null;
+		try {
+			Checkpoint checkpoint = resumable ? Checkpoint.read(outputFileName) : Checkpoint.NONE;
+			File output = new File(outputFileName);
+			if (checkpoint != Checkpoint.NONE) {
+				// Drop Whatever Was Written After The Checkpoint; The Client Sends It Again
+				try (RandomAccessFile raf = new RandomAccessFile(output, "rw")) {
+					raf.setLength(checkpoint.length);
+				}
+				this.file = new FileOutputStream(output, true);
+			} else {
+				this.file = new FileOutputStream(output);
+			}
+			this.resumedFrom = checkpoint;
+			this.readings = checkpoint.readings;
+			this.offset = checkpoint.offset;
+		} catch (IOException e) {
+			if (busy != null) busy.release();
+			throw e;
+		}
+		this.writer = new BufferedWriter(new OutputStreamWriter(file, StandardCharsets.UTF_8));
+		this.indexed = indexed ? new IndexedReadingFile.Writer(file.getChannel()) : null;
+		if (PER_SEGMENT.equals(flushPolicy)) {
+			this.flushIntervalNanos = 0;
+		} else if (AT_END.equals(flushPolicy)) {
+			this.flushIntervalNanos = Long.MAX_VALUE;
+		} else {
+			this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(flushPolicy));
+		}
+		this.thread = new Thread(this::drain, "writer-" + outputFileName);
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/* waits until no other resumable writer is appending to the file */
+	private static Semaphore lock(String outputFileName) throws IOException {
+		Semaphore semaphore = busyFiles.computeIfAbsent(new File(outputFileName).getAbsolutePath(), k -> new Semaphore(1));
+		try {
+			if (semaphore.tryAcquire(LOCK_TIMEOUT, TimeUnit.MILLISECONDS)) return semaphore;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		throw new IOException("Output File " + outputFileName + " Is Still Being Written By Another Transfer");
+	}
+
+	/* the payload tagged with the CSV offset just past its readings (sent by a resumable client) */
+	static String tagOffset(long offset, String payload) {
+		return OFFSET_TAG + Long.toString(offset) + OFFSET_END + payload;
+	}
+
+	/* the reply to a resumable client's Meta segment: resume=<CSV offset>,<readings> */
+	static String resumePayload(Checkpoint checkpoint) {
+		return RESUME_PREFIX + checkpoint.offset + "," + checkpoint.readings;
+	}
+
+	/* queues the readings of an in-order Data segment and returns how many there are */
+	public int append(int seqNum, String payload) throws IOException {
+		return append(seqNum, payload, -1);
+	}
+
+	/* queues the readings of an in-order Data segment of a stripe (-1 for none), named in its header */
+	public int append(int seqNum, String payload, int stripe) throws IOException {
+		if (failure != null) throw failure;
+		long tag = -1;
+		// Only A Resumable Client Tags Its Payloads; Otherwise A Leading '#' Belongs To The First Reading
+		if (busy != null && !payload.isEmpty() && payload.charAt(0) == OFFSET_TAG) {
+			int end = payload.indexOf(OFFSET_END);
+			try {
+				if (end <= 1) throw new NumberFormatException("No Offset");
+				tag = Long.parseLong(payload.substring(1, end));
+				if (tag < 0) throw new NumberFormatException("Negative Offset " + tag);
+			} catch (NumberFormatException e) {
+				throw new IOException("Malformed Offset Tag In Segment " + seqNum + ": " + e.getMessage());
+			}
+			payload = payload.substring(end + 1);
+		}
+		// A Keepalive Of A Quiet Live Stream (tail=<ms>) Carries No Readings
+		if (payload.isEmpty()) return 0;
+		String[] lines = payload.split(";");
+		try {
+			if (!enqueue(new Entry(seqNum, lines, tag, stripe))) throw stopped();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted While Queueing Segment " + seqNum);
+		}
+		return lines.length;
+	}
+
+	/* waits for room in the queue while the writer thread is still draining it; false once the thread has stopped */
+	private boolean enqueue(Entry entry) throws InterruptedException {
+		while (!queue.offer(entry, ENQUEUE_POLL_MS, TimeUnit.MILLISECONDS)) {
+			if (!thread.isAlive()) return false;
+		}
+		return true;
+	}
+
+	/* the error that stopped the writer thread */
+	private IOException stopped() {
+		return failure != null ? failure : new IOException("Writer Thread Stopped");
+	}
+
+	/* writes everything still queued, forces it to disk and closes the file */
+	@Override
+	public void close() throws IOException {
+		// A Writer Thread That Died On An Error Never Takes CLOSE, So It Is Only Queued While The Thread Runs
+		boolean queued = false;
+		try {
+			queued = enqueue(CLOSE);
+			if (queued) thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (busy != null) busy.release();
+		try {
+			if (failure != null || !queued) throw stopped();
+			Log.info("Data written to " + outputFileName);
+			if (store != null) logStore();
+		} finally {
+			if (store != null) store.close();
+		}
+	}
+
+	/* reports what the store holds, read back from its columns */
+	private void logStore() {
+		Log.info("SERVER: Stored " + store);
+		List<String> sensors = store.summarize();
+		for (String line : sensors.subList(0, Math.min(SUMMARY_SENSORS, sensors.size()))) Log.info("SERVER: Sensor " + line);
+		if (sensors.size() > SUMMARY_SENSORS) Log.info("SERVER: ... And " + (sensors.size() - SUMMARY_SENSORS) + " More Sensors");
+	}
+
+	/* records that every reading has arrived, so close() removes the checkpoint */
+	public void markComplete() {
+		this.complete = true;
+	}
+
+	/* where the output file was continued from (Checkpoint.NONE if it was started afresh) */
+	public Checkpoint getResumedFrom() {
+		return resumedFrom;
+	}
+
+	/* the writer thread: appends queued segments and forces them to disk as the policy says */
+	private void drain() {
+		long lastSync = System.nanoTime();
+		try {
+			while (true) {
+				long waitNanos = flushIntervalNanos == Long.MAX_VALUE ? Long.MAX_VALUE : flushIntervalNanos - (System.nanoTime() - lastSync);
+				Entry entry = waitNanos == Long.MAX_VALUE ? queue.take() : queue.poll(Math.max(0, waitNanos), TimeUnit.NANOSECONDS);
+				if (entry == CLOSE) break;
+				if (entry != null) write(entry);
+
+				if (flushIntervalNanos != Long.MAX_VALUE && System.nanoTime() - lastSync >= flushIntervalNanos) {
+					sync();
+					lastSync = System.nanoTime();
+				}
+			}
+			if (indexed != null) indexed.finish();
+			sync();
+			if (complete && busy != null) Files.deleteIfExists(Paths.get(outputFileName + CHECKPOINT_SUFFIX));
+		} catch (IOException e) {
+			failure = e;
+		} catch (UncheckedIOException e) {
+			failure = e.getCause();
+		} catch (InterruptedException e) {
+			failure = new IOException("Writer Interrupted");
+		} finally {
+			try {
+				writer.close();
+			} catch (IOException e) {
+				if (failure == null) failure = e;
+			}
+		}
+	}
+
+	private void write(Entry entry) throws IOException {
+		readings += entry.lines.length;
+		if (entry.offset >= 0) offset = entry.offset;
+		if (indexed != null) {
+			for (String line : entry.lines) {
+				if (!ReadingStore.parse(line, indexed)) Log.warn("SERVER: Not Writing Malformed Reading: " + line);
+				if (store != null) store.addFormatted(line);
+			}
+			return;
+		}
+		writer.write("Segment ["+ entry.seqNum + "]" + (entry.stripe < 0 ? "" : " of stripe " + entry.stripe) + " has "+ entry.lines.length + " Readings");
+		writer.newLine();
+		for (String line : entry.lines) {
+			writer.write(line);
+			writer.newLine();
+			if (store != null && !store.addFormatted(line)) Log.warn("SERVER: Not Storing Malformed Reading: " + line);
+		}
+		writer.newLine();
+	}
+
+	private void sync() throws IOException {
+		writer.flush();
+		file.getFD().sync();
+		// Only What Is On Disk Goes Into The Checkpoint
+		if (busy != null) new Checkpoint(readings, offset, file.getChannel().size()).write(outputFileName);
+	}
+}
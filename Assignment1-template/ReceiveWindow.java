@@ -0,0 +1,66 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+/*
+ * Receive buffer for selective repeat mode.
+ * Holds Data segments that arrived ahead of a gap and releases them in sequence order,
+ * so readings reach the output exactly as they appear in the CSV file.
+ */
+public class ReceiveWindow {
+
+	private final int windowSize;                                   // max number of segments accepted beyond the next expected one
+	private final TreeMap<Integer, Segment> buffered = new TreeMap<>(); // out-of-order segments waiting for the gap to fill
+	private int expectedSeq = 1;                                    // the next in-order sequence number (Meta uses 0)
+
+	/* constructor */
+	public ReceiveWindow(int windowSize) {
+		this.windowSize = windowSize;
+	}
+
+	/* true if the segment was already delivered or is already waiting in the buffer */
+	public boolean isDuplicate(int seqNum) {
+		return seqNum < expectedSeq || buffered.containsKey(seqNum);
+	}
+
+	/* buffers the segment if it falls inside the window; returns false if it lies beyond the window */
+	public boolean offer(Segment seg) {
+		int seqNum = seg.getSeqNum();
+		if (seqNum >= expectedSeq + windowSize) return false;
+		if (!isDuplicate(seqNum)) buffered.put(seqNum, seg);
+		return true;
+	}
+
+	/* removes and returns the segments that are now contiguous with what has already been delivered */
+	public List<Segment> drain() {
+		List<Segment> ready = new ArrayList<>();
+		Segment next;
+		while ((next = buffered.remove(expectedSeq)) != null) {
+			ready.add(next);
+			expectedSeq++;
+		}
+		return ready;
+	}
+
+	/* the cumulative ack point: every segment up to and including it has been delivered */
+	public int getCumulativeAck() {
+		return expectedSeq - 1;
+	}
+
+	/* the selective ack bitmap: bit i is set if segment getCumulativeAck() + 1 + i is buffered (bit 0 never is) */
+	public long getSackBits() {
+		long bits = 0;
+		for (int seqNum : buffered.subMap(expectedSeq, expectedSeq + Long.SIZE).keySet()) {
+			bits |= 1L << (seqNum - expectedSeq);
+		}
+		return bits;
+	}
+
+	/* getter methods */
+	public int getWindowSize() {
+		return windowSize;
+	}
+	public int getExpectedSeq() {
+		return expectedSeq;
+	}
+}
@@ -0,0 +1,67 @@
+/*
+ * Retransmission timeout estimator (the smoothed RTT / RTT variance scheme of RFC 6298).
+ *
+ * Every round trip time sample moves the smoothed RTT (srtt) and its variance (rttvar), and the timeout is
+ * srtt + 4 * rttvar, clamped to [MIN_RTO, MAX_RTO]. MIN_RTO is 200 ms, below RFC 6298's 1 s so a loss on
+ * a LAN is recovered quickly, yet above the delay of an Ack that is merely late.
+ * Callers only sample segments that were never retransmitted (Karn's rule), because an Ack for a resent
+ * segment could belong to any copy of it.
+ * Consecutive retries of one segment double the timeout each time (exponential backoff).
+ * With rto=fixed the timeout stays at its initial value for every try and samples are ignored.
+ * With delack=<n> the server may hold an Ack back for up to the ack delay, which is added to every timeout.
+ */
+public class RttEstimator {
+
+	static final int MIN_RTO = 200;       // lower bound of the timeout in milliseconds
+	static final int MAX_RTO = 60000;     // upper bound of the timeout in milliseconds, also caps the backoff
+	static final int GRANULARITY = 1;     // clock granularity in milliseconds
+
+	private final boolean adaptive;       // false keeps the timeout fixed at its initial value
+	private double srtt;                  // smoothed round trip time in milliseconds
+	private double rttvar;                // round trip time variation in milliseconds
+	private int rto;                      // current timeout in milliseconds, before backoff
+	private boolean sampled;              // true once the first sample has been taken
+	private int ackDelay;                 // longest time in milliseconds the receiver may delay an Ack
+
+	/* constructor */
+	public RttEstimator(int initialRto, boolean adaptive) {
+		this.rto = initialRto;
+		this.adaptive = adaptive;
+	}
+
+	/* adds the round trip time of a segment that was sent exactly once */
+	public void sample(long rttNanos) {
+		if (!adaptive) return;
+		double r = rttNanos / 1_000_000.0;
+		if (!sampled) {
+			srtt = r;
+			rttvar = r / 2;
+			sampled = true;
+		} else {
+			rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - r);
+			srtt = 0.875 * srtt + 0.125 * r;
+		}
+		rto = (int) Math.ceil(srtt + Math.max(GRANULARITY, 4 * rttvar));
+		rto = Math.max(MIN_RTO, Math.min(MAX_RTO, rto));
+	}
+
+	/* the timeout in milliseconds for a segment that has already been retransmitted the given number of times */
+	public int timeoutFor(int retries) {
+		if (!adaptive) return rto + ackDelay;
+		long backedOff = (long) (rto + ackDelay) << Math.min(retries, 16);
+		return (int) Math.min(backedOff, Math.max(MAX_RTO, rto));
+	}
+
+	/* setter method */
+	public void setAckDelay(int ackDelay) {
+		this.ackDelay = ackDelay;
+	}
+
+	/* getter methods */
+	public int getRto() {
+		return rto;
+	}
+	public double getSrtt() {
+		return srtt;
+	}
+}
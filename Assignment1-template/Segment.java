@@ -1,10 +1,10 @@
 /******** DO NOT EDIT THIS FILE ********/
 import java.io.Serializable;
-import java.util.zip.CRC32;
 
-//Segment type - either Data segment, Acknowledgment segment or Metadata segment
+//Segment type - either Data segment, Acknowledgment segment, Metadata segment or End segment
+//(End marks the end of the readings when the Meta segment left the total number of readings unknown)
 enum SegmentType {
-	Data, Ack, Meta 
+	Data, Ack, Meta, End 
 }
 
 /* 
@@ -20,32 +20,36 @@ public class Segment implements Serializable {
 	private int seqNum;               //sequence number of the segment
 	private SegmentType type;         //segment type
 	private String payload;          //payload data (metaData or patch-size number of readings)
-	private long checksum;           //checksum of the payload
+	private long checksum;           //checksum of the payload (or of the whole binary segment), tagged with its algorithm (see SegmentChecksum)
+	private transient Boolean valid; //whether the checksum matched, once it has been checked (the codec checks it on decode)
 
 	/* default constructor*/
 	public Segment() {}
 
-	/* constructor to set all the attributes including the checksum. */
+	/* constructor to set all the attributes; the checksum is filled in when the segment is encoded (see SegmentCodec.encode). */
 	public Segment(int seqNum, SegmentType type, String payload, int size) {
 		this.seqNum = seqNum;
 		this.type = type;
 		this.size = size;
 		this.payload = payload;
-		this.checksum = calculateChecksum();
 	}
 
-	/* Calculate the crc checksum of the payload. */
+	/* Calculate the checksum of the payload, with the algorithm the stored checksum names. */
 	public long calculateChecksum() {
-		CRC32 crc = new CRC32();
-		if (payload != null)
-			crc.update(payload.getBytes());
-		return crc.getValue();
+		SegmentChecksum algorithm = SegmentChecksum.of(this.checksum);
+		return algorithm == null ? ~this.checksum : algorithm.ofPayload(payload);
 	}
 
-	/* Validates the checksum */
+	/* Validates the checksum (once; a decoded segment was already checked by the codec) */
 	public boolean isValid() {
 		// Check if the stored checksum matches the recalculated one
-		return this.checksum == calculateChecksum();
+		if (this.valid == null) this.valid = this.checksum == calculateChecksum();
+		return this.valid;
+	}
+
+	/* records the result of checking the checksum (see SegmentCodec.decode) */
+	void setValid(boolean valid) {
+		this.valid = valid;
 	}
 
 
@@ -73,11 +77,13 @@ public class Segment implements Serializable {
 	}
 	public void setPayLoad(String payLoad) {
 		this.payload = payLoad;
+		this.valid = null;
 	}
 	public long getChecksum() {
 		return checksum;
 	}
-	public void setChecksum(int checksum) {
+	public void setChecksum(long checksum) {
 		this.checksum = checksum;
+		this.valid = null;
 	}
 }
@@ -0,0 +1,142 @@
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+
+/*
+ * The checksum algorithms a segment can be protected with, selected with the checksum=<crc32c|crc32|none>
+ * option (sent in the Meta segment, so the server acks with the client's choice):
+ *   crc32  - CRC-32, the original algorithm and the default
+ *   crc32c - CRC-32C (Castagnoli), which the JIT compiles to the CRC32 instructions of current x86 and ARM CPUs
+ *   none   - no checksum, for a trusted loopback or a network that already checks every datagram
+ *
+ * The algorithm belongs to one flow (it is kept next to the codec by whoever sends or receives the flow), and
+ * a Meta segment, which carries the negotiation, is always protected with CRC-32. Every segment also names its
+ * algorithm, a binary segment in the upper four bits of its type byte, a Java serialized one in the upper 32 bits
+ * of its checksum field, and a receiver rejects a segment that names any other algorithm than the flow's, so a
+ * damaged id cannot turn checking off (see SegmentCodec). The CRC of a binary segment covers the whole encoded segment (its header, with the
+ * checksum field taken as zero, and its payload bytes); a Java serialized segment carries the CRC of its
+ * payload's UTF-8 bytes. The CRC engines and the scratch buffer a payload is encoded into are kept per thread,
+ * so computing a checksum allocates nothing.
+ */
+public final class SegmentChecksum {
+
+	static final SegmentChecksum CRC_32 = new SegmentChecksum("crc32", 0x0);
+	static final SegmentChecksum CRC_32C = new SegmentChecksum("crc32c", 0x1);
+	static final SegmentChecksum NONE = new SegmentChecksum("none", 0xF);   // far (in bits) from the other ids, so a damaged id rarely turns checking off
+
+	private static final byte[] ZEROS = new byte[4];   // fed in place of the checksum field of a binary header
+
+	private final String name;
+	private final int id;
+	private final ThreadLocal<Checksum> engine;
+	private final ThreadLocal<byte[]> scratch = ThreadLocal.withInitial(() -> new byte[Protocol.MAX_Segment_SIZE]);
+
+	private SegmentChecksum(String name, int id) {
+		this.name = name;
+		this.id = id;
+		this.engine = id == 0x0 ? ThreadLocal.withInitial(CRC32::new) : id == 0x1 ? ThreadLocal.withInitial(CRC32C::new) : null;
+	}
+
+	/* the algorithm of a checksum=<name> option */
+	static SegmentChecksum named(String name) {
+		switch (name) {
+		case "crc32": return CRC_32;
+		case "crc32c": return CRC_32C;
+		case "none": return NONE;
+		default: throw new IllegalArgumentException("Unknown Checksum " + name + " (Expected crc32c, crc32 Or none)");
+		}
+	}
+
+	/* the algorithm with the given id; null if there is none */
+	static SegmentChecksum byId(int id) {
+		return id == CRC_32.id ? CRC_32 : id == CRC_32C.id ? CRC_32C : id == NONE.id ? NONE : null;
+	}
+
+	/* the algorithm a Java serialized segment's checksum field names */
+	static SegmentChecksum of(long checksum) {
+		return byId((int) (checksum >>> 32));
+	}
+
+	/* the checksum field of a Java serialized segment: the id in the upper 32 bits, the payload's CRC in the lower */
+	long ofPayload(String payload) {
+		if (engine == null) return (long) id << 32;
+		Checksum crc = engine.get();
+		crc.reset();
+		if (payload != null) {
+			// Encode The Payload As UTF-8 Into The Thread's Scratch Buffer, A Buffer Full At A Time
+			byte[] buf = scratch.get();
+			int n = 0;
+			for (int i = 0; i < payload.length(); i++) {
+				if (n > buf.length - 4) {
+					crc.update(buf, 0, n);
+					n = 0;
+				}
+				char c = payload.charAt(i);
+				if (c < 0x80) {
+					buf[n++] = (byte) c;
+				} else if (c < 0x800) {
+					buf[n++] = (byte) (0xC0 | (c >> 6));
+					buf[n++] = (byte) (0x80 | (c & 0x3F));
+				} else if (Character.isHighSurrogate(c) && i + 1 < payload.length() && Character.isLowSurrogate(payload.charAt(i + 1))) {
+					int cp = Character.toCodePoint(c, payload.charAt(++i));
+					buf[n++] = (byte) (0xF0 | (cp >> 18));
+					buf[n++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+					buf[n++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+					buf[n++] = (byte) (0x80 | (cp & 0x3F));
+				} else if (Character.isSurrogate(c)) {
+					buf[n++] = (byte) '?';     // an unpaired surrogate, as String.getBytes encodes it
+				} else {
+					buf[n++] = (byte) (0xE0 | (c >> 12));
+					buf[n++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+					buf[n++] = (byte) (0x80 | (c & 0x3F));
+				}
+			}
+			crc.update(buf, 0, n);
+		}
+		return ((long) id << 32) | crc.getValue();
+	}
+
+	/* the CRC of the binary segment in data[offset, offset + length), with its checksum field (at fieldAt) taken as zero */
+	int ofWire(byte[] data, int offset, int length, int fieldAt) {
+		if (engine == null) return 0;
+		Checksum crc = engine.get();
+		crc.reset();
+		crc.update(data, offset, fieldAt);
+		crc.update(ZEROS, 0, ZEROS.length);
+		crc.update(data, offset + fieldAt + 4, length - fieldAt - 4);
+		return (int) crc.getValue();
+	}
+
+	/* the CRC of the binary segment in buf[base, base + length), read in place (the buffer's position and limit are kept) */
+	int ofWire(ByteBuffer buf, int base, int length, int fieldAt) {
+		if (engine == null) return 0;
+		Checksum crc = engine.get();
+		crc.reset();
+		int position = buf.position();
+		int limit = buf.limit();
+		try {
+			buf.limit(base + fieldAt).position(base);
+			crc.update(buf);
+			crc.update(ZEROS, 0, ZEROS.length);
+			buf.limit(base + length).position(base + fieldAt + 4);
+			crc.update(buf);
+		} finally {
+			buf.limit(limit).position(position);
+		}
+		return (int) crc.getValue();
+	}
+
+	/* getter methods */
+	public String getName() {
+		return name;
+	}
+	public int getId() {
+		return id;
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}
@@ -0,0 +1,227 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.DatagramPacket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * Converts segments to and from datagram bytes.
+ *
+ * Two codecs are supported and selected with the codec=<java|bin> option, which the client sends in the Meta segment:
+ *   java - Java object serialization of the whole Segment (the original format, and the default)
+ *   bin  - a fixed 16 byte header followed by the UTF-8 payload, so an Ack is only 16 bytes on the wire:
+ *
+ *          | magic (1) | type (1) | seqNum (4) | size (4) | checksum (4) | payload length (2) | payload ... |
+ *
+ *          the upper four bits of the type byte name the checksum algorithm (see SegmentChecksum), and the
+ *          checksum covers the whole encoded segment, header included, so a damaged seqNum or type is caught too
+ *
+ * Both directions take the checksum algorithm of the flow (a Meta segment always uses CRC-32, as it carries
+ * the negotiation). The checksum is computed once, when a segment is encoded: over the payload for the java
+ * codec, over the encoded bytes for bin. Decoding recognises either format from its first byte, so the server
+ * can read the Meta segment before it knows which codec the client chose, and checks the checksum once (see
+ * Segment.isValid). A segment that names another algorithm than the flow's fails the check.
+ */
+public class SegmentCodec {
+
+	static final String JAVA = "java";          // Java object serialization
+	static final String BINARY = "bin";         // fixed layout binary header
+	static final int HEADER_SIZE = 16;          // size of the binary header in bytes
+	static final byte MAGIC = (byte) 0x5A;      // first byte of a binary segment (Java serialization starts with 0xAC)
+	static final int CHECKSUM_AT = 10;          // offset of the checksum field in the binary header
+	static final int SACK_DIGITS = 16;          // most hex digits a SACK bitmap of an Ack can have (64 bits)
+
+	private static final SegmentType[] TYPES = SegmentType.values();
+
+	private SegmentCodec() {}
+
+	/* encodes the segment with the named codec, filling in its checksum with the flow's algorithm */
+	public static byte[] encode(Segment seg, String codec, SegmentChecksum checksum) throws IOException {
+		SegmentChecksum algorithm = algorithmFor(seg.getType(), checksum);
+		if (BINARY.equals(codec)) return encodeBinary(seg, algorithm);
+
+		// Only The Java Serialized Form Carries The CRC Of The Payload, So It Is Computed Here
+		seg.setChecksum(algorithm.ofPayload(seg.getPayLoad()));
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		ObjectOutputStream os = new ObjectOutputStream(outputStream);
+		os.writeObject(seg);
+		return outputStream.toByteArray();
+	}
+
+	/* encodes the segment with the binary header, checksummed with the flow's algorithm */
+	public static byte[] encodeBinary(Segment seg, SegmentChecksum checksum) {
+		byte[] payload = seg.getPayLoad() == null ? new byte[0] : seg.getPayLoad().getBytes(StandardCharsets.UTF_8);
+		if (payload.length > 0xFFFF) throw new IllegalArgumentException("Payload Too Large For A Binary Segment: " + payload.length + " Bytes");
+
+		SegmentChecksum algorithm = algorithmFor(seg.getType(), checksum);
+		byte[] data = new byte[HEADER_SIZE + payload.length];
+		data[0] = MAGIC;
+		data[1] = (byte) (seg.getType().ordinal() | algorithm.getId() << 4);
+		putInt(data, 2, seg.getSeqNum());
+		putInt(data, 6, seg.getSize());
+		data[14] = (byte) (payload.length >>> 8);
+		data[15] = (byte) payload.length;
+		System.arraycopy(payload, 0, data, HEADER_SIZE, payload.length);
+		int crc = algorithm.ofWire(data, 0, data.length, CHECKSUM_AT);
+		putInt(data, CHECKSUM_AT, crc);
+		seg.setChecksum(((long) algorithm.getId() << 32) | (crc & 0xFFFFFFFFL));
+		return data;
+	}
+
+	/* encodes the segment with the binary header into the buffer, starting at its position */
+	public static void encodeBinary(Segment seg, ByteBuffer dst, SegmentChecksum checksum) {
+		byte[] payload = seg.getPayLoad() == null ? new byte[0] : seg.getPayLoad().getBytes(StandardCharsets.UTF_8);
+		if (payload.length > 0xFFFF) throw new IllegalArgumentException("Payload Too Large For A Binary Segment: " + payload.length + " Bytes");
+
+		SegmentChecksum algorithm = algorithmFor(seg.getType(), checksum);
+		int base = dst.position();
+		dst.put(MAGIC);
+		dst.put((byte) (seg.getType().ordinal() | algorithm.getId() << 4));
+		dst.putInt(seg.getSeqNum());
+		dst.putInt(seg.getSize());
+		dst.putInt(0);
+		dst.putShort((short) payload.length);
+		dst.put(payload);
+		int crc = algorithm.ofWire(dst, base, dst.position() - base, CHECKSUM_AT);
+		dst.putInt(base + CHECKSUM_AT, crc);
+		seg.setChecksum(((long) algorithm.getId() << 32) | (crc & 0xFFFFFFFFL));
+	}
+
+	/* the algorithm a segment of the type is checksummed with in a flow: the flow's, except CRC-32 for a Meta segment */
+	static SegmentChecksum algorithmFor(SegmentType type, SegmentChecksum flow) {
+		return type == SegmentType.Meta ? SegmentChecksum.CRC_32 : flow;
+	}
+
+	/*
+	 * encodes a binary Ack straight into dst (at least HEADER_SIZE + 16 bytes) without building a Segment,
+	 * with the SACK bitmap as hex digits when selective (the payload Server.sendAck gives it); returns its length
+	 */
+	public static int encodeBinaryAck(byte[] dst, int seqNum, long sackBits, boolean selective, SegmentChecksum algorithm) {
+		int digits = selective ? Math.max(1, (64 - Long.numberOfLeadingZeros(sackBits) + 3) / 4) : 0;
+		for (int i = 0; i < digits; i++) {
+			dst[HEADER_SIZE + i] = (byte) Character.forDigit((int) (sackBits >>> (4 * (digits - 1 - i))) & 0xF, 16);
+		}
+		dst[0] = MAGIC;
+		dst[1] = (byte) (SegmentType.Ack.ordinal() | algorithm.getId() << 4);
+		putInt(dst, 2, seqNum);
+		putInt(dst, 6, "Ack".length());
+		dst[14] = 0;
+		dst[15] = (byte) digits;
+		putInt(dst, CHECKSUM_AT, algorithm.ofWire(dst, 0, HEADER_SIZE + digits, CHECKSUM_AT));
+		return HEADER_SIZE + digits;
+	}
+
+	/* true if the buffer (from its position) holds a binary segment header */
+	public static boolean isBinary(ByteBuffer buf) {
+		return buf.remaining() >= HEADER_SIZE && buf.get(buf.position()) == MAGIC;
+	}
+
+	/* the type of the binary segment in the buffer, read in place; null if the type is unknown */
+	public static SegmentType typeOf(ByteBuffer buf) {
+		int type = buf.get(buf.position() + 1) & 0x0F;
+		return type >= 0 && type < TYPES.length ? TYPES[type] : null;
+	}
+
+	/* the seqNum of the binary segment in the buffer, read in place */
+	public static int seqNumOf(ByteBuffer buf) {
+		return buf.getInt(buf.position() + 2);
+	}
+
+	/*
+	 * the SACK bitmap of the binary Ack in the buffer, parsed in place from its hex payload (0 if it has none);
+	 * a bitmap that is not 1 to 16 hex digits also gives 0, so a damaged one never marks segments as received
+	 */
+	public static long sackBitsOf(ByteBuffer buf) {
+		int base = buf.position();
+		int payloadLength = buf.getShort(base + 14) & 0xFFFF;
+		if (payloadLength > SACK_DIGITS || HEADER_SIZE + payloadLength > buf.remaining()) return 0;
+		long bits = 0;
+		for (int i = 0; i < payloadLength; i++) {
+			int digit = Character.digit((char) buf.get(base + HEADER_SIZE + i), 16);
+			if (digit < 0) return 0;
+			bits = (bits << 4) | digit;
+		}
+		return bits;
+	}
+
+	/* true if the binary segment in the buffer names the flow's algorithm and matches its checksum, checked in place */
+	public static boolean isValid(ByteBuffer buf, SegmentChecksum checksum) {
+		int base = buf.position();
+		int payloadLength = buf.getShort(base + 14) & 0xFFFF;
+		if (HEADER_SIZE + payloadLength > buf.remaining()) return false;
+		SegmentChecksum algorithm = algorithmFor(typeOf(buf), checksum);
+		if (((buf.get(base + 1) >>> 4) & 0x0F) != algorithm.getId()) return false;
+		return algorithm == SegmentChecksum.NONE || algorithm.ofWire(buf, base, HEADER_SIZE + payloadLength, CHECKSUM_AT) == buf.getInt(base + CHECKSUM_AT);
+	}
+
+	/* the SACK bitmap carried as hex in an Ack payload (0 if it has none, or if it is not a hex bitmap) */
+	public static long parseSackBits(String payload) {
+		if (payload == null || payload.isEmpty() || payload.length() > SACK_DIGITS) return 0;
+		try {
+			return Long.parseUnsignedLong(payload, 16);
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/* decodes the segment held in a received packet, checking it against the flow's checksum algorithm */
+	public static Segment decode(DatagramPacket packet, SegmentChecksum checksum) throws IOException {
+		return decode(packet.getData(), packet.getOffset(), packet.getLength(), checksum);
+	}
+
+	/* decodes a segment in either format, detected from its first byte */
+	public static Segment decode(byte[] data, int offset, int length, SegmentChecksum checksum) throws IOException {
+		if (length > 0 && data[offset] == MAGIC) return decodeBinary(data, offset, length, checksum);
+
+		try {
+			ObjectInputStream is = new ObjectInputStream(new ByteArrayInputStream(data, offset, length));
+			Segment seg = (Segment) is.readObject();
+			// Checked Now, So The Receive Loops Only Read The Result (Any Other Algorithm Than The Flow's Fails)
+			SegmentChecksum algorithm = algorithmFor(seg.getType(), checksum);
+			seg.setValid(SegmentChecksum.of(seg.getChecksum()) == algorithm && seg.getChecksum() == algorithm.ofPayload(seg.getPayLoad()));
+			return seg;
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Unknown Segment Class: " + e.getMessage(), e);
+		} catch (RuntimeException e) {
+			// A Damaged Stream Can Also Fail Outside IOException (E.g. The Wrong Class Or A Bad Field)
+			throw new IOException("Corrupt Segment: " + e, e);
+		}
+	}
+
+	/* decodes a segment with the binary header */
+	public static Segment decodeBinary(byte[] data, int offset, int length, SegmentChecksum checksum) throws IOException {
+		if (length < HEADER_SIZE) throw new IOException("Truncated Segment Header: " + length + " Bytes");
+		int type = data[offset + 1] & 0x0F;
+		int algorithmId = (data[offset + 1] >>> 4) & 0x0F;
+		int payloadLength = ((data[offset + 14] & 0xFF) << 8) | (data[offset + 15] & 0xFF);
+		if (type >= TYPES.length) throw new IOException("Unknown Segment Type: " + type);
+		if (HEADER_SIZE + payloadLength > length) throw new IOException("Truncated Segment Payload: " + length + " Bytes");
+		SegmentChecksum algorithm = algorithmFor(TYPES[type], checksum);
+
+		Segment seg = new Segment();
+		seg.setType(TYPES[type]);
+		seg.setSeqNum(getInt(data, offset + 2));
+		seg.setSize(getInt(data, offset + 6));
+		int crc = getInt(data, offset + CHECKSUM_AT);
+		seg.setChecksum(((long) algorithmId << 32) | (crc & 0xFFFFFFFFL));
+		seg.setPayLoad(new String(data, offset + HEADER_SIZE, payloadLength, StandardCharsets.UTF_8));
+		// The Checksum Covers The Encoded Bytes, So It Is Checked Here, Once (A Segment Naming Another Algorithm Fails)
+		seg.setValid(algorithmId == algorithm.getId()
+				&& (algorithm == SegmentChecksum.NONE || algorithm.ofWire(data, offset, HEADER_SIZE + payloadLength, CHECKSUM_AT) == crc));
+		return seg;
+	}
+
+	private static void putInt(byte[] data, int pos, int value) {
+		data[pos] = (byte) (value >>> 24);
+		data[pos + 1] = (byte) (value >>> 16);
+		data[pos + 2] = (byte) (value >>> 8);
+		data[pos + 3] = (byte) value;
+	}
+
+	private static int getInt(byte[] data, int pos) {
+		return ((data[pos] & 0xFF) << 24) | ((data[pos + 1] & 0xFF) << 16) | ((data[pos + 2] & 0xFF) << 8) | (data[pos + 3] & 0xFF);
+	}
+}
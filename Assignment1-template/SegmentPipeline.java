@@ -0,0 +1,120 @@
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/*
+ * Read-ahead stage of the stop-and-wait client (nm and wt modes with pipeline=<n>).
+ * A producer thread reads the CSV file, builds each Data segment (computing its checksum) and encodes it,
+ * and hands the ready-to-send segments to the network stage through a queue of up to n segments. The
+ * network stage (readAndSend, receiveAck and startTimeoutWithRetransmission) then only sends and waits for
+ * Acks, while the next segments are being prepared.
+ *
+ * Stop-and-wait sends every segment once its predecessor has been acknowledged, so the sequence number of
+ * each segment (1, 0, 1, ...) is known when it is prepared, and a retransmission resends the prepared bytes.
+ */
+public class SegmentPipeline {
+
+	static final int DEFAULT_DEPTH = 16;        // pipeline=on: segments prepared ahead
+
+	/* a segment ready to send, with the CSV offset just past its readings */
+	static class Prepared {
+		final Segment segment;
+		final byte[] data;      // the encoded segment
+		final int readings;
+		final long end;
+
+		Prepared(Segment segment, byte[] data, int readings, long end) {
+			this.segment = segment;
+			this.data = data;
+			this.readings = readings;
+			this.end = end;
+		}
+	}
+
+	private static final Prepared DONE = new Prepared(null, null, 0, -1);   // no more segments follow
+
+	private final Protocol protocol;
+	private final long startOffset;
+	private final BlockingQueue<Prepared> queue;
+	private final Thread thread;
+	private volatile IOException failure;       // the producer's error, reported to the network stage
+	private boolean done;                       // DONE was taken (network stage only)
+
+	/* constructor, starting the producer at a byte offset of the CSV file (past the readings already acknowledged) */
+	public SegmentPipeline(Protocol protocol, long startOffset, int depth) {
+		this.protocol = protocol;
+		this.startOffset = startOffset;
+		this.queue = new ArrayBlockingQueue<>(depth);
+		this.thread = new Thread(this::produce, "pipeline");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/* the pipeline=<n|on|off> option as a number of segments prepared ahead; 0 when it is off */
+	static int parseDepth(String value) {
+		if ("off".equals(value)) return 0;
+		if ("on".equals(value)) return DEFAULT_DEPTH;
+		int depth;
+		try {
+			depth = Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid pipeline=" + value + " (Expected A Number Of Segments, on Or off)");
+		}
+		if (depth < 0) throw new IllegalArgumentException("Invalid pipeline=" + value + " (Must Not Be Negative)");
+		return depth;
+	}
+
+	/* the next segment to send, waiting for the producer if need be; null once every segment has been taken */
+	public Prepared next() throws IOException {
+		if (done) return null;
+		Prepared prepared;
+		try {
+			prepared = queue.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted While Waiting For The Next Segment");
+		}
+		if (prepared == DONE) {
+			done = true;
+			if (failure != null) throw failure;
+			return null;
+		}
+		return prepared;
+	}
+
+	/* the producer thread: reads, builds and encodes every segment in order, then DONE */
+	private void produce() {
+		boolean unknownTotal = protocol.getFileTotalReadings() == Protocol.UNKNOWN_TOTAL;
+		boolean resumable = protocol.isResumable();
+		int maxPatchSize = protocol.getMaxPatchSize();
+		int budget = protocol.getPayloadBudget();
+		String codec = protocol.getCodec();
+		SegmentChecksum checksum = protocol.getChecksum();
+		int index = 0;
+		try (CsvCursor cursor = CsvCursor.open(protocol)) {
+			cursor.seek(startOffset);
+			while (true) {
+				CsvCursor.Patch patch = cursor.readPatch(maxPatchSize, budget);
+				// The End Segment Is Only Needed When The Server Does Not Know The Total
+				if (patch == null && !unknownTotal) break;
+
+				String payload = patch == null ? "" : resumable ? ReadingWriter.tagOffset(patch.end, patch.payload) : patch.payload;
+				int seqNum = (index % 2 == 0) ? 1 : 0;
+				Segment segment = new Segment(seqNum, patch == null ? SegmentType.End : SegmentType.Data, payload, payload.length());
+				byte[] data = SegmentCodec.encode(segment, codec, checksum);
+				queue.put(new Prepared(segment, data, patch == null ? 0 : patch.readings, patch == null ? cursor.position() : patch.end));
+				index++;
+				if (patch == null) break;
+			}
+		} catch (IOException e) {
+			failure = e;
+		} catch (InterruptedException e) {
+			failure = new IOException("Pipeline Interrupted");
+		}
+		try {
+			queue.put(DONE);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
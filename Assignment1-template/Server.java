@@ -1,16 +1,10 @@
 /******** DO NOT EDIT THIS FILE ********/
 import java.io.BufferedWriter;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 import java.util.Scanner;
 
@@ -20,11 +14,19 @@ import java.util.Scanner;
  * 
  * start server as:
  *      
- *      java Server <port number> <nm|wl> 
+ *      java Server <port number> <nm|wl|sr|mc> [option=value ...]
  *
  * where port number is a port for the server to listen on in the range 1025 to 65535
  * nm selects normal transfer mode 
  * wl selects transfer with lost acknowledgment 
+ * sr selects selective repeat transfer (the client must also use sr)
+ * mc selects the multi-client server, which serves clients in any mode concurrently, each in its own session
+ * options are optional name=value settings, e.g. flush=segment, metrics=1000 (a JSON metrics line every second), jmx=on
+ * or log=info (leave out the per-segment messages; the levels are described in Log)
+ * format=indexed writes the output file as indexed binary blocks instead of text (query it with ReadingQuery)
+ * store=on also keeps the received readings in memory, decoded into off-heap columns (see ReadingStore)
+ * a client started in sr mode with stripes=<n> is received on this port and the next n - 1 ports (see StripedReceiver)
+ * a client started with resume=on is continued from the checkpoint kept next to its output file (see ReadingWriter)
  */
 
 public class Server {
@@ -34,15 +36,23 @@ public class Server {
 	/* the main method  */
 	public static void main(String[] args) throws IOException, InterruptedException {
 		if (args.length < 2) {
-			System.err.println("Usage: java Server <port number><nm|wl>");
+			System.err.println("Usage: java Server <port number><nm|wl|sr|mc> [option=value ...]");
 			System.err.println("port number: is a positive number in the range 1025 to 65535");
-			System.err.println("nm selects normal transfer|wl selects transfer with lost Ack");
+			System.err.println("nm selects normal transfer|wl selects transfer with lost Ack|sr selects selective repeat transfer|mc serves many clients at once");
 			System.exit(1);
 		} 
 
 		Server server = new Server();
 		int portNumber = Integer.parseInt(args[0]);
 		String choice=args[1];
+		try {
+			Protocol.instance.initOptions(args, 2);
+		} catch (IllegalArgumentException e) {
+			System.err.println("Usage error: " + e.getMessage());
+			System.exit(1);
+		}
+		Log.configure(Protocol.instance);
+		TransferMetrics.instance.start("server", Protocol.instance);
 
 		// create a UDP socket with the entere port number
 		ServerSocket = new DatagramSocket(portNumber);
@@ -50,21 +60,30 @@ public class Server {
 		//asking the user for the loss probability when the mode is LOST_MODE - for Part 4 only
 		float loss = 0;
 		Scanner sc=new Scanner(System.in);   
-		if (choice.equalsIgnoreCase(Protocol.LOST_MODE)) {
+		if (choice.equalsIgnoreCase(Protocol.LOST_MODE) || choice.equalsIgnoreCase(Protocol.SLIDING_MODE)) {
+			//the prompt goes straight to the console, after everything logged before it
+			Log.flush();
 			System.out.println("Enter the probability of a lost ack (between 0 and 1): ");
 			loss = sc.nextFloat();
 		} 
 
-		System.out.println("SERVER: Ready to receive meta data from the client "); 
-		System.out.println("------------------------------------------------------------------");
-		System.out.println("------------------------------------------------------------------");
+		//the multi-client server reads every client's meta data in its own session
+		if (choice.equalsIgnoreCase(Protocol.MULTI_MODE)) {
+			new SessionServer(ServerSocket).serve();
+			sc.close();
+			return;
+		}
+
+		Log.info("SERVER: Ready to receive meta data from the client "); 
+		Log.info("------------------------------------------------------------------");
+		Log.info("------------------------------------------------------------------");
 		/* receive meta data from the client */
 		server.ReceiveMetaData();
 
-		System.out.println("------------------------------------------------------------------");
-		System.out.println("SERVER: Waiting for the actual readings .."); 
-		System.out.println("------------------------------------------------------------------");
-		System.out.println("------------------------------------------------------------------");
+		Log.info("------------------------------------------------------------------");
+		Log.info("SERVER: Waiting for the actual readings .."); 
+		Log.info("------------------------------------------------------------------");
+		Log.info("------------------------------------------------------------------");
 
 		switch(choice)
 		{
@@ -78,8 +97,19 @@ public class Server {
 			Protocol.instance.receiveWithAckLoss(ServerSocket,loss);
 			break; 
 
+		//selective repeat mode (receive window with reordering)
+		case Protocol.SLIDING_MODE:
+			int stripes = Protocol.instance.getIntOption("stripes", 1);
+			if (stripes > 1) {
+				//a striped transfer: one flow per stripe, on this port and the next stripes - 1 ports
+				new StripedReceiver(ServerSocket, loss, stripes, Protocol.instance.getOutputFileName()).receive();
+			} else {
+				Protocol.instance.receiveSelectiveRepeat(ServerSocket,loss);
+			}
+			break;
+
 		default:
-			System.out.println("Error! mode is not recognised");  
+			Log.error("Error! mode is not recognised");  
 		} 
 
 		sc.close();
@@ -92,14 +122,11 @@ public class Server {
 
 		DatagramPacket incomingPacket = new DatagramPacket(buf, buf.length);
 		ServerSocket.receive(incomingPacket);
-		byte[] data = incomingPacket.getData();
-		ByteArrayInputStream in = new ByteArrayInputStream(data);
-		ObjectInputStream is = new ObjectInputStream(in);
 
-		// read the content of the segment
+		// read the content of the segment (in either codec)
 		try {
-			serverMetaSeg = (Segment) is.readObject(); 
-		} catch (ClassNotFoundException e) {
+			serverMetaSeg = SegmentCodec.decode(incomingPacket, SegmentChecksum.CRC_32);  // a Meta segment is always checked with CRC-32
+		} catch (IOException e) {
 			e.printStackTrace();
 		}  
 
@@ -110,76 +137,102 @@ public class Server {
 			Protocol.instance.setFileTotalReadings(Integer.parseInt(parts[0]));  
 			Protocol.instance.setOutputFileName(parts[1]);
 			Protocol.instance.setMaxPatchSize(Integer.parseInt(parts[2]));
+			//any further parts are name=value options negotiated by the client (e.g. window=16)
+			try {
+				Protocol.instance.initOptions(parts, 3);
+			} catch (IllegalArgumentException e) {
+				Log.error("SERVER: Rejecting Meta Segment: " + e.getMessage());
+				ServerSocket.close();
+				System.exit(0);
+			}
 
 			//print the expected number of segments with the other information
-			System.out.println("SERVER: META [SEQ#" + serverMetaSeg.getSeqNum() + "] (Total Segments:" 
-					+ (int) Math.ceil((float)Protocol.instance.getFileTotalReadings()/Protocol.instance.getMaxPatchSize()) + ", outputFile:" + Protocol.instance.getOutputFileName()  + ", patchSize:" + Protocol.instance.getMaxPatchSize() + ")");
+			//(a total of -1 means the client sends an End segment after the last reading instead)
+			int totalReadings = Protocol.instance.getFileTotalReadings();
+			Log.info("SERVER: META [SEQ#" + serverMetaSeg.getSeqNum() + "] (Total Segments:" 
+					+ (totalReadings == Protocol.UNKNOWN_TOTAL ? "unknown" : String.valueOf((int) Math.ceil((float)totalReadings/Protocol.instance.getMaxPatchSize()))) + ", outputFile:" + Protocol.instance.getOutputFileName()  + ", patchSize:" + Protocol.instance.getMaxPatchSize()
+					+ (Protocol.instance.getOption("budget", null) == null ? "" : ", budget:" + Protocol.instance.getOption("budget", null)) + ")");
+
+			//a resumable client waits to hear which readings are already in the output file
+			if (Protocol.instance.isResumable()) {
+				sendResumePoint(ServerSocket, incomingPacket.getAddress(), incomingPacket.getPort(),
+						ReadingWriter.Checkpoint.read(Protocol.instance.getOutputFileName()), Protocol.instance.getCodec());
+			}
 		}
 	}
 
 
 	/* Receive the readings (stored in Data segments) on the given socket from the client */
 	public void receiveNormal() throws IOException {
-		byte[] buf = new byte[Protocol.MAX_Segment_SIZE];
+		//the buffer must hold the largest datagram the client may send (the budget negotiated in the meta data)
+		byte[] buf = new byte[Protocol.instance.getReceiveBufferSize()];
 		
-		//creat a temporary list to store the readings
-		List<String> receivedLines = new ArrayList<>();
-
-		//track the number of the correctly received readings
-		int readingCount= 0;
+		boolean endReceived = false;
 
-		// while still receiving Data segments  
-		while (true) {
-			DatagramPacket incomingPacket = new DatagramPacket(buf, buf.length);
-			ServerSocket.receive(incomingPacket);// receive from the client    
+		// while still receiving Data segments (reusing one packet for all of them)
+		// the readings are appended to the output file as they arrive
+		DatagramPacket incomingPacket = new DatagramPacket(buf, buf.length);
+		try (ReadingWriter writer = Protocol.instance.openWriter()) {
+			//track the number of the correctly received readings (counting those a resumed transfer already has)
+			int readingCount = (int) writer.getResumedFrom().readings;
+			while (true) {
+				incomingPacket.setLength(buf.length);
+				ServerSocket.receive(incomingPacket);// receive from the client    
 			
-			Segment serverDataSeg = new Segment(); 
-			byte[] data = incomingPacket.getData();
-			ByteArrayInputStream in = new ByteArrayInputStream(data);
-			ObjectInputStream is = new ObjectInputStream(in);
-
-			// read and then print the content of the segment
-			try {
-				serverDataSeg = (Segment) is.readObject(); 
-			} catch (ClassNotFoundException e) {
-				e.printStackTrace();
-			}
-			System.out.println("SERVER: Receive: DATA [SEQ#"+ serverDataSeg.getSeqNum()+ "]("+"size:"+serverDataSeg.getSize()+", crc: "+serverDataSeg.getChecksum()+
-					", content:"  + serverDataSeg.getPayLoad()+")");
-
-			// calculate the checksum
-			long x = serverDataSeg.calculateChecksum();
-
-			// if the calculated checksum is same as that of received checksum then send the corresponding ack
-			if (serverDataSeg.getType() == SegmentType.Data && x == serverDataSeg.getChecksum()) {
-				System.out.println("SERVER: Calculated checksum is " + x + "  VALID");
-
-				// write the payload of the data segment to the temporary list 
-				String[] lines = serverDataSeg.getPayLoad().split(";");
-				receivedLines.add("Segment ["+ serverDataSeg.getSeqNum() + "] has "+ lines.length + " Readings");
-				receivedLines.addAll(Arrays.asList(lines));
-				receivedLines.add("");
-				
-				//update the number of correctly received readings
-				readingCount += lines.length;
-
-				// extract the client IP address and port number from the received packet for sending the ack to the client
-				InetAddress iPAddress = incomingPacket.getAddress();
-				int port = incomingPacket.getPort();
-				//the sequence number of the Ack segment is the same as the received Data segment
-				sendAck(ServerSocket, iPAddress, port, serverDataSeg.getSeqNum());
+				Segment serverDataSeg = new Segment(); 
+
+				// read and then print the content of the segment
+				try {
+					serverDataSeg = SegmentCodec.decode(incomingPacket, Protocol.instance.getChecksum()); 
+				} catch (IOException e) {
+					e.printStackTrace();
+					continue;
+				}
+				if (Log.isDebug()) Log.debug("SERVER: Receive: DATA [SEQ#"+ serverDataSeg.getSeqNum()+ "]("+"size:"+serverDataSeg.getSize()+", crc: "+serverDataSeg.getChecksum()+
+						", content:"  + serverDataSeg.getPayLoad()+")");
+
+				TransferMetrics.instance.segmentReceived(incomingPacket.getLength());
+
+				// the checksum was checked when the segment was decoded
+				boolean valid = serverDataSeg.isValid();
+
+				// a resent Meta segment means the client did not get the reply to the first one
+				if (serverDataSeg.getType() == SegmentType.Meta && Protocol.instance.isResumable()) {
+					sendResumePoint(ServerSocket, incomingPacket.getAddress(), incomingPacket.getPort(), writer.getResumedFrom(), Protocol.instance.getCodec());
+
+				// the End segment carries no readings, it only needs to be acknowledged
+				} else if (serverDataSeg.getType() == SegmentType.End && valid) {
+					endReceived = true;
+					TransferMetrics.instance.segmentAccepted(serverDataSeg.getSize());
+					sendAck(ServerSocket, incomingPacket.getAddress(), incomingPacket.getPort(), serverDataSeg.getSeqNum());
+
+				// if the calculated checksum is same as that of received checksum then send the corresponding ack
+				} else if (serverDataSeg.getType() == SegmentType.Data && valid) {
+					Log.debug("SERVER: Calculated checksum is " + serverDataSeg.getChecksum() + "  VALID");
+
+					// write the payload of the data segment to the output file and update the number of correctly received readings
+					readingCount += writer.append(serverDataSeg.getSeqNum(), serverDataSeg.getPayLoad());
+					TransferMetrics.instance.segmentAccepted(serverDataSeg.getSize());
+
+					// extract the client IP address and port number from the received packet for sending the ack to the client
+					InetAddress iPAddress = incomingPacket.getAddress();
+					int port = incomingPacket.getPort();
+					//the sequence number of the Ack segment is the same as the received Data segment
+					sendAck(ServerSocket, iPAddress, port, serverDataSeg.getSeqNum());
 			
-			// if the calculated checksum is not the same as that of received checksum, then do not send any ack
-			} else if (serverDataSeg.getType() == SegmentType.Data&& x != serverDataSeg.getChecksum()) {
-				System.out.println("SERVER: Calculated checksum is " + x + "  INVALID");
-				System.out.println("SERVER: Not sending any ACK ");
-				System.out.println("*************************** "); 
-			}
+				// if the calculated checksum is not the same as that of received checksum, then do not send any ack
+				} else if (serverDataSeg.getType() == SegmentType.Data&& !valid) {
+					Log.warn("SERVER: Calculated checksum is " + serverDataSeg.getChecksum() + "  INVALID");
+					TransferMetrics.instance.checksumFailure();
+					Log.debug("SERVER: Not sending any ACK ");
+					Log.debug("*************************** "); 
+				}
 			
-			//if all readings are received, then write the readings to the file
-			if (Protocol.instance.getOutputFileName() != null && readingCount >= Protocol.instance.getFileTotalReadings()) { 
-				writeReadingsToFile(receivedLines, Protocol.instance.getOutputFileName());
-				break;
+				//if all readings are received, then finish the output file
+				if (Protocol.instance.getOutputFileName() != null && Protocol.instance.isComplete(readingCount, endReceived)) { 
+					writer.markComplete();
+					break;
+				}
 			}
 		}
 
@@ -189,27 +242,47 @@ public class Server {
 
 	/* send the Ack segment to the client */
 	public static void sendAck(DatagramSocket socket, InetAddress address, int port, int seqNum)  throws IOException {
+		//encode it with the codec and checksum negotiated in the Meta segment
+		sendAck(socket, address, port, seqNum, Protocol.instance.getCodec(), Protocol.instance.getChecksum());
+	}
+
+	/* send the Ack segment to the client, encoded with the given codec and checksum */
+	public static void sendAck(DatagramSocket socket, InetAddress address, int port, int seqNum, String codec, SegmentChecksum checksum)  throws IOException {
+		sendAck(socket, address, port, seqNum, codec, checksum, "");
+	}
+
+	/* send the Ack segment to the client with a payload (the SACK bitmap in hex when ack=sack) */
+	public static void sendAck(DatagramSocket socket, InetAddress address, int port, int seqNum, String codec, SegmentChecksum checksum, String payload)  throws IOException {
 		//create the segment
-		Segment serverAckSeg =  new Segment(seqNum, SegmentType.Ack, "", "Ack".length());
-		System.out.println("SERVER: Send: ACK [SEQ#" + seqNum +"]");
+		Segment serverAckSeg =  new Segment(seqNum, SegmentType.Ack, payload, "Ack".length());
+		Log.debug("SERVER: Send: ACK [SEQ#" + seqNum +"]" + (payload.isEmpty() ? "" : "(SACK: " + payload + ")"));
 
-		ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-		ObjectOutputStream os = new ObjectOutputStream(outputStream);
-		os.writeObject(serverAckSeg);			
-		byte[] dataAck = outputStream.toByteArray();			
+		byte[] dataAck = SegmentCodec.encode(serverAckSeg, codec, checksum);
 		DatagramPacket ackPacket = new DatagramPacket(dataAck, dataAck.length, address, port);
 
 		// send the Ack segment 
 		socket.send(ackPacket);
+		TransferMetrics.instance.ackSent();
 
-		System.out.println("\t\t>>>>>>> NETWORK: ACK is sent successfully <<<<<<<<<"  );
-		System.out.println("------------------------------------------------" );
-		System.out.println("------------------------------------------------"  );  
+		Log.debug("\t\t>>>>>>> NETWORK: ACK is sent successfully <<<<<<<<<"  );
+		Log.debug("------------------------------------------------" );
+		Log.debug("------------------------------------------------"  );  
 
 	}
 
 
 
+	/* tell a resumable client where to continue: the readings the output file already has and the CSV offset after them */
+	public static void sendResumePoint(DatagramSocket socket, InetAddress address, int port, ReadingWriter.Checkpoint checkpoint, String codec)  throws IOException {
+		String payload = ReadingWriter.resumePayload(checkpoint);
+		Segment replySeg = new Segment(0, SegmentType.Meta, payload, payload.length());
+		Log.info("SERVER: Send: META [SEQ#0](" + (checkpoint.readings == 0 ? "New Transfer" : "Resume After " + checkpoint) + ")");
+
+		//a Meta segment is always checksummed with CRC-32, as the client may not have its reply's algorithm yet
+		byte[] data = SegmentCodec.encode(replySeg, codec, SegmentChecksum.CRC_32);
+		socket.send(new DatagramPacket(data, data.length, address, port));
+	}
+
 	/* write the readings stored in the list to the output file */
 	public static void writeReadingsToFile(List<String> receivedLines, String outputFileName) throws IOException {
 		try (BufferedWriter writer = new BufferedWriter(new FileWriter(outputFileName))) {
@@ -218,7 +291,7 @@ public class Server {
 				writer.newLine();
 			}
 		}
-		System.out.println("Data written to " + outputFileName); 
+		Log.info("Data written to " + outputFileName); 
 	}
 	
 }
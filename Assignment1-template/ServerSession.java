@@ -0,0 +1,208 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * The server side of one client's transfer in multi-client mode (mc).
+ * Holds everything Protocol.instance holds for a single-client server (the Meta values, the expected
+ * sequence number and the received readings) for one client address only. The client's mode, sent in
+ * the Meta segment, picks alternating 0/1 sequence numbers (nm, wt) or a receive window (sr).
+ */
+public class ServerSession implements Runnable {
+
+	private final SessionServer server;       // the dispatcher that owns this session
+	private final DatagramSocket socket;      // the shared socket, used to send Acks
+	private final SocketAddress client;       // the address and port of the client
+	private final InetSocketAddress clientAddress;
+	private final String name;                // prefix for status messages
+
+	private final int fileTotalReadings;      // readings announced in the Meta segment (or Protocol.UNKNOWN_TOTAL)
+	private final String outputFileName;      // the output file for this client's readings
+	private final Map<String, String> options = new HashMap<>(); // options from the Meta segment
+	private final String codec;               // the codec Acks are sent in
+	private final SegmentChecksum checksum;   // the checksum algorithm the client negotiated, for this flow only
+	private final ReceiveWindow window;       // receive window in sr mode, null in nm/wt mode
+	private final boolean selectiveAcks;      // ack=sack: sr Acks carry a cumulative ack point and a SACK bitmap
+	private final boolean resumable;          // resume=on: the output file is continued from its checkpoint
+	private final AckSender acks;             // sends (and with delack=<n> delays) the Acks in sr mode, null in nm/wt mode
+
+	private final BlockingQueue<DatagramPacket> inbox = new LinkedBlockingQueue<>(); // datagrams routed here by the dispatcher
+	private ReadingWriter writer;              // appends in-order readings to the output file
+	private int readingCount;                 // readings received in order
+	private boolean endReceived;              // the End segment was accepted in order
+	private int expectedSeq = 1;              // next alternating seqNum in nm/wt mode
+	private int lastCorrectSeq = -1;          // last accepted alternating seqNum, re-acked for duplicates
+	private volatile boolean complete;        // the transfer is complete and the session only lingers
+	private boolean started;                  // handed to its thread (read and written by the dispatcher only)
+
+	/* constructor, taking the transfer settings from the client's Meta segment */
+	public ServerSession(SessionServer server, DatagramSocket socket, SocketAddress client, Segment metaSeg) {
+		this.server = server;
+		this.socket = socket;
+		this.client = client;
+		this.clientAddress = (InetSocketAddress) client;
+		this.name = "SERVER [" + clientAddress.getAddress().getHostAddress() + ":" + clientAddress.getPort() + "]";
+
+		//extract the number of readings, the name of the output file, the patch size and the options
+		String[] parts = metaSeg.getPayLoad().split(",");
+		this.fileTotalReadings = Integer.parseInt(parts[0]);
+		this.outputFileName = parts[1];
+		for (int i = 3; i < parts.length; i++) {
+			int eq = parts[i].indexOf('=');
+			if (eq > 0) options.put(parts[i].substring(0, eq), parts[i].substring(eq + 1));
+		}
+		// The Stripes Of A Striped Transfer Go To The Ports After The Server's, Where Only An sr Server Listens
+		String stripes = options.getOrDefault("stripes", "1");
+		if (!"1".equals(stripes)) throw new IllegalArgumentException("Striped Transfers (stripes=" + stripes + ") Need A Server In sr Mode, Not mc");
+		this.codec = options.getOrDefault("codec", SegmentCodec.JAVA);
+		this.checksum = SegmentChecksum.named(options.getOrDefault("checksum", SegmentChecksum.CRC_32.getName()));
+		this.selectiveAcks = Protocol.SACK.equals(options.get("ack"));
+		this.resumable = "on".equals(options.get("resume"));
+		boolean sliding = Protocol.isSlidingMode(options.get("mode"));
+		this.window = sliding ? new ReceiveWindow(Protocol.parseWindow(options.getOrDefault("window", String.valueOf(Protocol.DEFAULT_WINDOW)))) : null;
+
+		Log.info(name + ": META [SEQ#" + metaSeg.getSeqNum() + "] (Total Readings:" 
+				+ (fileTotalReadings == Protocol.UNKNOWN_TOTAL ? "unknown" : String.valueOf(fileTotalReadings)) + ", outputFile:" + outputFileName + ", patchSize:" + parts[2] + ", mode:" + (sliding ? options.get("mode") : "stop-and-wait") + ")");
+		this.acks = sliding ? new AckSender(name, socket, codec, checksum, selectiveAcks, Integer.parseInt(options.getOrDefault("delack", "1")), window.getWindowSize(), 0) : null;
+	}
+
+	/* runs the session on a thread of the executor (called on the dispatcher thread, once) */
+	void start(ExecutorService executor) {
+		started = true;
+		executor.execute(this);
+	}
+
+	/* true once start() has been called */
+	boolean isStarted() {
+		return started;
+	}
+
+	/* true once the transfer is complete and the session only lingers to re-ack a lost final Ack */
+	boolean isLingering() {
+		return complete;
+	}
+
+	/* queues a datagram from this session's client (called on the dispatcher thread) */
+	public void deliver(DatagramPacket packet) {
+		inbox.add(packet);
+	}
+
+	/* processes this client's datagrams until the transfer is complete or the client goes quiet */
+	@Override
+	public void run() {
+		try {
+			writer = Protocol.openWriter(outputFileName, options);
+			readingCount = (int) writer.getResumedFrom().readings;
+			if (resumable) Server.sendResumePoint(socket, clientAddress.getAddress(), clientAddress.getPort(), writer.getResumedFrom(), codec);
+			if (isComplete()) finish();  // a resumed transfer the output file already holds in full
+			while (true) {
+				// After Completion Only Linger Long Enough To Re-Ack A Lost Final Ack (And Wake Up For A Delayed Ack)
+				long timeout = complete ? Protocol.LINGER_TIMEOUT : Protocol.IDLE_TIMEOUT;
+				DatagramPacket packet = inbox.poll(acks == null ? timeout : acks.waitMillis(timeout), TimeUnit.MILLISECONDS);
+				if (packet == null && acks != null && acks.isPending()) {
+					acks.flushIfDue();
+					continue;
+				}
+				if (packet == null) {
+					if (!complete) Log.info(name + ": No Packets Received For " + Protocol.IDLE_TIMEOUT + "ms. Keeping The " + readingCount + " Readings Received.");
+					break;
+				}
+				handle(packet);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			Log.error(name + ": Error: " + e.getMessage());
+		} finally {
+			Protocol.closeQuietly(writer);
+			server.remove(client, this);
+		}
+	}
+
+	/* checks one datagram and acknowledges it according to the client's mode */
+	private void handle(DatagramPacket packet) throws IOException {
+		Segment seg;
+		try {
+			seg = SegmentCodec.decode(packet, checksum);
+		} catch (IOException e) {
+			Log.warn(name + ": Dropping Undecodable Segment: " + e.getMessage());
+			return;
+		}
+		if (seg.getType() == SegmentType.Meta && resumable && writer != null) {
+			// The Client Did Not Get The Reply To Its Meta Segment
+			Server.sendResumePoint(socket, clientAddress.getAddress(), clientAddress.getPort(), writer.getResumedFrom(), codec);
+			return;
+		}
+		if (seg.getType() != SegmentType.Data && seg.getType() != SegmentType.End) return;
+
+		Log.debug(name + ": Receive: " + seg.getType().toString().toUpperCase() + " [SEQ#" + seg.getSeqNum() + "](size:" + seg.getSize() + ")");
+		TransferMetrics.instance.segmentReceived(packet.getLength());
+		if (!seg.isValid()) {
+			Log.warn(name + ": Calculated Checksum INVALID, Not Sending Any ACK");
+			TransferMetrics.instance.checksumFailure();
+			return;
+		}
+
+		if (window != null) {
+			// Selective Repeat: Buffer Inside The Window And Ack Each Segment Individually
+			boolean duplicate = window.isDuplicate(seg.getSeqNum());
+			if (duplicate) {
+				Log.warn(name + ": Duplicate DATA Is Detected");
+				TransferMetrics.instance.duplicate();
+			} else if (!window.offer(seg)) {
+				return;
+			} else {
+				TransferMetrics.instance.segmentAccepted(seg.getSize());
+			}
+			for (Segment ready : window.drain()) accept(ready);
+			acks.ack(clientAddress.getAddress(), clientAddress.getPort(), seg.getSeqNum(), window, duplicate || isComplete());
+		} else if (seg.getSeqNum() == expectedSeq) {
+			// Stop-And-Wait: Accept The Expected Alternating SeqNum
+			accept(seg);
+			TransferMetrics.instance.segmentAccepted(seg.getSize());
+			lastCorrectSeq = expectedSeq;
+			expectedSeq = (expectedSeq == 1) ? 0 : 1;
+			sendAck(seg.getSeqNum());
+		} else {
+			Log.warn(name + ": Duplicate DATA Is Detected");
+			TransferMetrics.instance.duplicate();
+			if (lastCorrectSeq >= 0) sendAck(lastCorrectSeq);
+		}
+	}
+
+	/* writes the readings of an in-order segment, and closes the output file once the transfer is complete */
+	private void accept(Segment seg) throws IOException {
+		if (complete) return;
+		if (seg.getType() == SegmentType.End) {
+			endReceived = true;
+		} else {
+			readingCount += writer.append(seg.getSeqNum(), seg.getPayLoad());
+		}
+		// Complete Before The Final Ack Goes Out, So The Client's Next Transfer Finds This Session Lingering
+		if (isComplete()) finish();
+	}
+
+	/* marks the output file complete and closes it; the session then only lingers */
+	private void finish() throws IOException {
+		writer.markComplete();
+		writer.close();
+		writer = null;
+		complete = true;
+	}
+
+	private void sendAck(int seqNum) throws IOException {
+		Server.sendAck(socket, clientAddress.getAddress(), clientAddress.getPort(), seqNum, codec, checksum);
+	}
+
+	private boolean isComplete() {
+		return fileTotalReadings == Protocol.UNKNOWN_TOTAL ? endReceived : readingCount >= fileTotalReadings;
+	}
+}
@@ -0,0 +1,113 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketAddress;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/*
+ * Multi-client server (mode mc).
+ * One socket receives the datagrams of every client. Each datagram is routed to the session of the
+ * address/port it came from. A Meta segment from an unknown address opens a new session (as does one
+ * from the address of a finished session that is only lingering, which is retired), and each
+ * session runs on its own thread with its own sequence numbers, reading counts and output file, so
+ * one slow client never holds up another.
+ */
+public class SessionServer {
+
+	private final DatagramSocket socket;                                            // the socket shared by all sessions
+	private final Map<SocketAddress, ServerSession> sessions = new ConcurrentHashMap<>(); // live sessions by client address
+	private final ExecutorService executor = newSessionExecutor();
+
+	/* constructor */
+	public SessionServer(DatagramSocket socket) {
+		this.socket = socket;
+	}
+
+	/* receives datagrams forever and hands them to their sessions */
+	public void serve() throws IOException {
+		Log.info("SERVER: Ready To Receive From Many Clients On Port " + socket.getLocalPort());
+		// Receive Into One Buffer Big Enough For Any Client's Budget, Then Copy Out Just The Datagram,
+		// Because The Session Reads It On Another Thread
+		byte[] buf = new byte[Protocol.MAX_DATAGRAM_SIZE];
+		DatagramPacket receivePacket = new DatagramPacket(buf, buf.length);
+		while (true) {
+			receivePacket.setLength(buf.length);
+			socket.receive(receivePacket);
+			byte[] data = Arrays.copyOf(buf, receivePacket.getLength());
+			DatagramPacket incomingPacket = new DatagramPacket(data, data.length, receivePacket.getSocketAddress());
+
+			SocketAddress client = incomingPacket.getSocketAddress();
+			ServerSession lingering = sessions.get(client);
+			if (lingering != null && lingering.isLingering() && isMeta(incomingPacket)) {
+				// A New Transfer From The Same Address And Port: Its Segments Must Not Be Re-Acked By The Finished One
+				Log.info("SERVER: New Transfer From " + client + ", Retiring Its Finished Session");
+				sessions.remove(client, lingering);
+			}
+
+			ServerSession session = sessions.computeIfAbsent(client, c -> open(c, incomingPacket));
+			if (session == null) continue;
+			if (session.isStarted()) {
+				session.deliver(incomingPacket);
+			} else {
+				session.start(executor);  // the Meta segment it was opened with is not delivered again
+			}
+		}
+	}
+
+	/* a new session for the client's Meta segment; null (no session) for any other datagram */
+	private ServerSession open(SocketAddress client, DatagramPacket packet) {
+		// Only A Meta Segment Can Open A Session
+		Segment metaSeg;
+		try {
+			metaSeg = SegmentCodec.decode(packet, SegmentChecksum.CRC_32);  // a Meta segment is always checked with CRC-32
+		} catch (IOException e) {
+			Log.warn("SERVER: Dropping Undecodable Segment From " + client + ": " + e.getMessage());
+			return null;
+		}
+		if (metaSeg.getType() != SegmentType.Meta) {
+			Log.warn("SERVER: Dropping " + metaSeg.getType() + " Segment From " + client + " (No Session)");
+			return null;
+		}
+
+		if (!metaSeg.isValid()) {
+			Log.warn("SERVER: Dropping Meta Segment From " + client + " With An Invalid Checksum");
+			return null;
+		}
+		try {
+			return new ServerSession(this, socket, client, metaSeg);
+		} catch (IllegalArgumentException e) {
+			// E.g. A checksum= The Server Does Not Know; The Client Gives Up Once Its Retries Run Out
+			Log.warn("SERVER: Rejecting Meta Segment From " + client + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	/* true if the datagram is an intact Meta segment, which starts a new transfer */
+	private static boolean isMeta(DatagramPacket packet) {
+		try {
+			Segment seg = SegmentCodec.decode(packet, SegmentChecksum.CRC_32);
+			return seg.getType() == SegmentType.Meta && seg.isValid();
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/* called by a session when it has finished */
+	void remove(SocketAddress client, ServerSession session) {
+		sessions.remove(client, session);
+		Log.info("SERVER: " + sessions.size() + " Session(s) Still Active");
+	}
+
+	/* a virtual thread per session where the JVM has them (Java 21+), otherwise a cached platform thread pool */
+	private static ExecutorService newSessionExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newCachedThreadPool();
+		}
+	}
+}
@@ -0,0 +1,392 @@
+import java.io.IOException;
+import java.util.TreeMap;
+
+/*
+ * Client side of the selective repeat (sliding window) transfer mode.
+ * Up to windowSize Data segments are in flight at once. Each one has its own retransmission timer, is
+ * acknowledged individually by the server, and the window slides forward as the oldest segment is acked.
+ * Sequence numbers start at 1 (Meta uses 0) and keep increasing instead of alternating between 0 and 1.
+ *
+ * In cc mode the window is also limited by a congestion window (cwnd, in segments). It starts at
+ * INITIAL_CWND and grows by one segment per acked segment (slow start) up to the slow start threshold, then
+ * by about one segment per round trip (additive increase). A retransmission timeout halves the threshold
+ * and restarts slow start from one segment (multiplicative decrease). Segments sent before a cut cannot
+ * cut the window again, so one loss burst counts as one congestion event. The window option caps cwnd.
+ *
+ * Fast retransmit: every Ack that covers a segment newer than an unacknowledged one counts as a duplicate
+ * Ack against it. After DUP_ACK_THRESHOLD of them the segment is taken as lost and resent at once, instead of
+ * waiting for its timer (only once per segment; after that its timer resends it). In cc mode this loss also
+ * halves cwnd, without going back to slow start, as the Acks still arriving show data is getting through.
+ *
+ * In the live streaming mode (tail=<ms>, see TailReader) the readings come from a growing file or standard
+ * input instead: a patch is sent once it is full or its oldest reading has waited <ms>, and the sender runs
+ * until the input ends. While nothing is in flight it waits for the input, and after KEEPALIVE_INTERVAL ms
+ * without a segment it sends an empty Data segment, so the server does not give the quiet client up.
+ */
+public class SlidingWindowSender {
+
+	static final double INITIAL_CWND = 2;    // congestion window in segments when a cc flow starts
+	static final double MIN_SSTHRESH = 2;    // the slow start threshold is never cut below this
+	static final int DUP_ACK_THRESHOLD = 3;  // duplicate Acks that make a segment count as lost
+	static final int KEEPALIVE_INTERVAL = Protocol.IDLE_TIMEOUT / 4; // ms a live stream may stay quiet before a keepalive is sent
+
+	/* book-keeping for a Data segment that has been sent but not yet acknowledged */
+	private static class Outstanding {
+		final Segment seg;      // the segment as first sent, resent unchanged on timeout
+		final int readings;     // number of readings in the payload
+		final long offset;      // byte offset of the patch in the CSV file
+		Transport.Wire wire;    // the encoded segment, resent as is on timeout
+		long sentAt;            // System.nanoTime() of the first transmission, for the round trip time sample
+		long deadline;          // System.nanoTime() at which the segment is retransmitted
+		int retries;            // consecutive retransmissions of this segment
+		int dupAcks;            // Acks for newer segments received while this one is unacked
+		boolean fastRetransmitted; // resent on duplicate Acks (at most once)
+		boolean acked;          // acked, but still waiting for older segments before the window can slide
+
+		Outstanding(Segment seg, int readings, long offset) {
+			this.seg = seg;
+			this.readings = readings;
+			this.offset = offset;
+		}
+	}
+
+	private final Transport transport;     // puts segments on the wire and reads Acks back
+	private final int windowSize;          // max number of unacknowledged Data segments
+	private final int maxPatchSize;        // max number of readings per Data segment
+	private final int payloadBudget;       // max payload bytes per Data segment (budget=<bytes>)
+	private final RttEstimator rtt;        // retransmission timeout estimator
+	private final int maxRetries;          // max consecutive retransmissions of one segment
+	private final boolean unknownTotal;    // the Meta segment left the total unknown (or this is a stripe), so an End segment finishes the transfer
+	private final boolean selectiveAcks;   // ack=sack: Acks carry a cumulative ack point and a SACK bitmap
+	private final boolean resumable;       // resume=on: each payload is tagged with the CSV offset after it
+	private final Transport.Ack ack = new Transport.Ack(); // reused for every received Ack
+	private final boolean congestionControl; // cc mode: the window is also limited by cwnd
+
+	private double cwnd;                   // congestion window in segments (cc mode)
+	private double ssthresh;               // slow start threshold in segments (cc mode)
+	private int recoverSeq;                // timeouts of segments below this do not cut cwnd again
+	private int newlyAcked;                // segments acknowledged by the Ack being processed
+
+	private final TreeMap<Integer, Outstanding> outstanding = new TreeMap<>(); // in-flight segments keyed by seqNum
+	private CsvCursor cursor;              // reader over the CSV file
+	private TailReader tail;               // the live input instead of the cursor (tail=<ms>), else null
+	private long lastSentAt = System.nanoTime(); // System.nanoTime() of the latest transmission, for keepalives
+	private int nextSeq = 1;               // sequence number of the next new Data segment
+	private boolean endOfFile;             // true once the last reading has been read from the CSV file
+	private boolean endSent;               // true once the End segment has been queued
+	private int sentReadings;              // readings acknowledged by the server (including those of a resumed transfer)
+	private int totalSegments;             // Data segments sent, including retransmissions
+
+	/* constructor, taking the connection and limits from the initialised protocol */
+	public SlidingWindowSender(Protocol protocol) throws IOException {
+		this(protocol, protocol.openTransport());
+	}
+
+	/* constructor with an explicit transport */
+	public SlidingWindowSender(Protocol protocol, Transport transport) {
+		this(protocol, transport, protocol.getRttEstimator(), protocol.getFileTotalReadings() == Protocol.UNKNOWN_TOTAL);
+	}
+
+	/* constructor for one flow of several (a stripe): its own round trip time estimate, and whether it ends with an End segment */
+	public SlidingWindowSender(Protocol protocol, Transport transport, RttEstimator rtt, boolean endSegment) {
+		this.transport = transport;
+		this.windowSize = protocol.getIntOption("window", Protocol.DEFAULT_WINDOW);
+		this.maxPatchSize = protocol.getMaxPatchSize();
+		this.payloadBudget = protocol.getPayloadBudget();
+		this.rtt = rtt;
+		this.maxRetries = protocol.getMaxRetries();
+		this.unknownTotal = endSegment;
+		this.congestionControl = Protocol.CONGESTION_MODE.equals(protocol.getOption("mode", ""));
+		this.cwnd = Math.min(INITIAL_CWND, windowSize);
+		this.ssthresh = windowSize;
+		this.selectiveAcks = Protocol.SACK.equals(protocol.getOption("ack", ""));
+		this.resumable = protocol.isResumable();
+		this.sentReadings = protocol.getSentReadings();
+	}
+
+	/* sends every reading in the CSV file and returns once they have all been acknowledged */
+	public void send(CsvCursor cursor) throws IOException {
+		this.cursor = cursor;
+		run();
+	}
+
+	/* streams the readings of the live input and returns once it has ended and they have all been acknowledged */
+	public void send(TailReader tail) throws IOException {
+		this.tail = tail;
+		run();
+	}
+
+	private void run() throws IOException {
+		if (congestionControl) TransferMetrics.instance.cwndChanged(cwnd);
+		while (true) {
+			// Keep The Window Full (With A Live Input, With Every Patch That Is Due)
+			while (!endOfFile && nextSeq < base() + sendWindow()) {
+				if (!sendNextPatch()) break;
+			}
+			if (endOfFile && unknownTotal && !endSent && nextSeq < base() + sendWindow()) {
+				sendEnd();
+			}
+			if (tail != null && !endOfFile && outstanding.isEmpty() && System.nanoTime() - lastSentAt >= KEEPALIVE_INTERVAL * 1_000_000L) {
+				sendKeepalive();
+			}
+			if (outstanding.isEmpty()) {
+				if (endOfFile) break;
+				// A CSV File Always Has A Patch To Send Or Is At Its End, So An Empty Window Here Is A Bug
+				if (tail == null) throw new IllegalStateException("Nothing In Flight Before The End Of The File (Window " + sendWindow() + ")");
+				// Nothing In Flight: Wait For The Live Input, But Not Past The Next Keepalive
+				long keepaliveMs = KEEPALIVE_INTERVAL - (System.nanoTime() - lastSentAt) / 1_000_000L;
+				tail.await(Math.max(1, Math.min(tail.waitMillis(), keepaliveMs)));
+				continue;
+			}
+
+			retransmitExpired();
+
+			// Wait For An Ack No Longer Than The Earliest Pending Timer (Or The Next Patch Of A Live Input Falls Due)
+			long waitMs = (earliestDeadline() - System.nanoTime()) / 1_000_000L;
+			if (tail != null && !endOfFile) waitMs = Math.min(waitMs, tail.waitMillis());
+			receiveAck((int) Math.max(1, waitMs));
+		}
+		transport.close();
+		Log.info("Total Segments: " + totalSegments);
+	}
+
+	/* opens a sender on the initialised protocol and sends its CSV file */
+	public static void send(Protocol protocol) {
+		try (CsvCursor csvCursor = CsvCursor.open(protocol)) {
+			// A Resumed Transfer Starts After The Readings The Server Already Has
+			if (protocol.getAckedOffset() > 0) csvCursor.seek(protocol.getAckedOffset());
+			new SlidingWindowSender(protocol).send(csvCursor);
+		} catch (IOException e) {
+			Log.error("CLIENT: Error: " + e.getMessage());
+			protocol.getSocket().close();
+			System.exit(0);
+		}
+	}
+
+	/* opens a sender on the initialised protocol and streams its live input (tail=<ms>) */
+	public static void stream(Protocol protocol) {
+		try (TailReader tail = TailReader.open(protocol)) {
+			tail.stopOnShutdown();
+			new SlidingWindowSender(protocol).send(tail);
+		} catch (IOException e) {
+			Log.error("CLIENT: Error: " + e.getMessage());
+			protocol.getSocket().close();
+			System.exit(0);
+		}
+	}
+
+	/* reads the next patch of readings and sends it as a new Data segment; false if there was none to send */
+	private boolean sendNextPatch() throws IOException {
+		CsvCursor.Patch patch;
+		if (tail != null) {
+			// A Live Input Has A Patch Only Once It Is Due, And Ends Only When The Input Does
+			patch = tail.readPatch(maxPatchSize, payloadBudget);
+			if (patch == null && tail.isFinished()) endOfFile = true;
+		} else {
+			patch = cursor.readPatch(maxPatchSize, payloadBudget);
+			if (patch == null || cursor.position() >= cursor.size()) endOfFile = true;
+		}
+		if (patch == null) return false;
+
+		String payload = resumable ? ReadingWriter.tagOffset(patch.end, patch.payload) : patch.payload;
+		Segment dataSegment = new Segment(nextSeq, SegmentType.Data, payload, payload.length());
+		Outstanding entry = new Outstanding(dataSegment, patch.readings, patch.offset);
+		outstanding.put(nextSeq, entry);
+		nextSeq++;
+
+		transmit(entry);
+		if (Log.isDebug()) Log.debug("CLIENT: Send: DATA [SEQ#" + dataSegment.getSeqNum() + "](Size:" + dataSegment.getSize() + ", Crc: " + dataSegment.getChecksum() + ", Content:" + dataSegment.getPayLoad() + ")");
+		return true;
+	}
+
+	/* sends an empty Data segment, which the server acks without writing anything, to keep a quiet live stream open */
+	private void sendKeepalive() throws IOException {
+		Segment keepalive = new Segment(nextSeq, SegmentType.Data, "", 0);
+		Outstanding entry = new Outstanding(keepalive, 0, position());
+		outstanding.put(nextSeq, entry);
+		nextSeq++;
+
+		Log.debug("CLIENT: Send: KEEPALIVE [SEQ#" + keepalive.getSeqNum() + "]");
+		transmit(entry);
+	}
+
+	/* sends the End segment that tells the server there are no more readings */
+	private void sendEnd() throws IOException {
+		Segment endSegment = new Segment(nextSeq, SegmentType.End, "", 0);
+		Outstanding entry = new Outstanding(endSegment, 0, position());
+		outstanding.put(nextSeq, entry);
+		nextSeq++;
+		endSent = true;
+
+		Log.debug("CLIENT: Send: END [SEQ#" + endSegment.getSeqNum() + "]");
+		transmit(entry);
+	}
+
+	/* resends every unacknowledged segment whose timer has expired */
+	private void retransmitExpired() throws IOException {
+		long now = System.nanoTime();
+		for (Outstanding entry : outstanding.values()) {
+			if (entry.acked || entry.deadline - now > 0) continue;
+
+			entry.retries++;
+			if (entry.retries > maxRetries) {
+				Log.error("CLIENT: Maximum Retries Exceeded. Exiting.");
+				exit();
+			}
+			TransferMetrics.instance.timeout();
+			Log.warn("CLIENT: TIMEOUT ALERT [SEQ#" + entry.seg.getSeqNum() + "]");
+			if (congestionControl && entry.seg.getSeqNum() >= recoverSeq) {
+				// The Ack Clock Has Stopped: Halve The Threshold And Slow Start Again From One Segment
+				ssthresh = Math.max(MIN_SSTHRESH, cwnd / 2);
+				setCwnd(1);
+				recoverSeq = nextSeq;
+				Log.warn("CLIENT: Congestion Window Cut To " + (int) cwnd + " (Threshold " + (int) ssthresh + ")");
+			}
+			Log.warn("CLIENT: Re-Sending The Same Segment Again, Current Retry " + entry.retries);
+			transmit(entry);
+		}
+	}
+
+	/* waits up to timeoutMs for one Ack and marks the segments it covers as acknowledged */
+	private void receiveAck(int timeoutMs) throws IOException {
+		if (!transport.receiveAck(timeoutMs, ack)) return;
+		TransferMetrics.instance.ackReceived();
+		newlyAcked = 0;
+
+		Outstanding newest;
+		int highest;            // the newest segment this Ack covers
+		if (selectiveAcks) {
+			Log.debug("CLIENT: Receive: ACK [CUM#" + ack.seqNum + "](SACK: " + Long.toHexString(ack.sackBits) + ")");
+			// Everything Up To The Cumulative Point, Then Every Segment Flagged In The Bitmap
+			newest = null;
+			for (Outstanding entry : outstanding.headMap(ack.seqNum, true).values()) {
+				newest = markAcked(entry, newest);
+			}
+			for (long bits = ack.sackBits; bits != 0; bits &= bits - 1) {
+				newest = markAcked(outstanding.get(ack.seqNum + 1 + Long.numberOfTrailingZeros(bits)), newest);
+			}
+			highest = ack.seqNum + 64 - Long.numberOfLeadingZeros(ack.sackBits);
+		} else {
+			Log.debug("CLIENT: Receive: ACK [SEQ#" + ack.seqNum + "]");
+			newest = markAcked(outstanding.get(ack.seqNum), null);
+			highest = ack.seqNum;
+		}
+		countDuplicateAcks(highest);
+		if (newest == null) return; // Duplicate Ack
+		if (congestionControl) growCwnd(newlyAcked);
+
+		// Only Segments Sent Once Give A Trustworthy RTT Sample (Karn's Rule), So Sample The Newest Of Those Just Acked
+		if (newest.retries == 0 && !newest.fastRetransmitted) {
+			long rttNanos = System.nanoTime() - newest.sentAt;
+			rtt.sample(rttNanos);
+			TransferMetrics.instance.rttSample(rttNanos);
+		}
+
+		// Slide The Window Past Every Acknowledged Segment At Its Start
+		while (!outstanding.isEmpty() && outstanding.firstEntry().getValue().acked) {
+			transport.release(outstanding.pollFirstEntry().getValue().wire);
+		}
+		Log.debug("***************************************************************************************************");
+	}
+
+	/* counts a duplicate Ack against every unacked segment older than highest, resending those that reach the threshold */
+	private void countDuplicateAcks(int highest) throws IOException {
+		for (Outstanding entry : outstanding.headMap(highest, false).values()) {
+			if (entry.acked || entry.fastRetransmitted || ++entry.dupAcks < DUP_ACK_THRESHOLD) continue;
+
+			entry.fastRetransmitted = true;
+			TransferMetrics.instance.fastRetransmit();
+			Log.warn("CLIENT: FAST RETRANSMIT [SEQ#" + entry.seg.getSeqNum() + "] After " + entry.dupAcks + " Duplicate Acks");
+			if (congestionControl && entry.seg.getSeqNum() >= recoverSeq) {
+				// Acks Are Still Arriving, So Halve The Window Rather Than Restarting Slow Start
+				ssthresh = Math.max(MIN_SSTHRESH, cwnd / 2);
+				setCwnd(ssthresh);
+				recoverSeq = nextSeq;
+				Log.warn("CLIENT: Congestion Window Cut To " + (int) cwnd + " (Threshold " + (int) ssthresh + ")");
+			}
+			transmit(entry);
+		}
+	}
+
+	/* marks one outstanding segment acked; returns it if it is newly acked and newer than newest, else newest */
+	private Outstanding markAcked(Outstanding entry, Outstanding newest) {
+		if (entry == null || entry.acked) return newest;
+		entry.acked = true;
+		newlyAcked++;
+		sentReadings += entry.readings;
+		if (newest == null || entry.seg.getSeqNum() > newest.seg.getSeqNum()) return entry;
+		return newest;
+	}
+
+	/* opens the congestion window for newly acked segments: one segment each in slow start, about one per window after */
+	private void growCwnd(int acked) {
+		double grown = cwnd;
+		for (int i = 0; i < acked; i++) {
+			grown += grown < ssthresh ? 1 : 1 / grown;
+		}
+		setCwnd(Math.min(grown, windowSize));
+	}
+
+	private void setCwnd(double value) {
+		TransferMetrics.instance.cwndChanged(value - cwnd);
+		cwnd = value;
+	}
+
+	/* the number of segments that may be outstanding: the window option, or less while cwnd is smaller (cc mode) */
+	private int sendWindow() {
+		return congestionControl ? Math.max(1, Math.min(windowSize, (int) cwnd)) : windowSize;
+	}
+
+	/* sends the segment (encoding it only the first time), then restarts its timer */
+	private void transmit(Outstanding entry) throws IOException {
+		if (entry.wire == null) entry.wire = transport.encode(entry.seg);
+		transport.send(entry.wire);
+		boolean retransmission = entry.retries > 0 || entry.fastRetransmitted;
+		TransferMetrics.instance.segmentSent(entry.wire.length, entry.seg.getSize(), retransmission);
+		long now = System.nanoTime();
+		if (!retransmission) entry.sentAt = now;
+		entry.deadline = now + rtt.timeoutFor(entry.retries) * 1_000_000L;
+		lastSentAt = now;
+		totalSegments++;
+	}
+
+	/* the oldest unacknowledged sequence number (start of the window) */
+	private int base() {
+		return outstanding.isEmpty() ? nextSeq : outstanding.firstKey();
+	}
+
+	/* the earliest retransmission deadline of the unacknowledged segments (the oldest one is always unacked) */
+	private long earliestDeadline() {
+		long earliest = outstanding.firstEntry().getValue().deadline;
+		for (Outstanding entry : outstanding.values()) {
+			if (!entry.acked && entry.deadline - earliest < 0) earliest = entry.deadline;
+		}
+		return earliest;
+	}
+
+	private void exit() throws IOException {
+		transport.close();
+		System.exit(0);
+	}
+
+	/* byte offset in the CSV file of the oldest reading not yet acknowledged */
+	public long getAckedOffset() {
+		return outstanding.isEmpty() ? position() : outstanding.firstEntry().getValue().offset;
+	}
+
+	/* byte offset of the next reading to be read */
+	private long position() {
+		return tail != null ? tail.position() : cursor.position();
+	}
+
+	/* getter methods */
+	public double getCwnd() {
+		return cwnd;
+	}
+	public int getSentReadings() {
+		return sentReadings;
+	}
+	public int getTotalSegments() {
+		return totalSegments;
+	}
+}
@@ -0,0 +1,106 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/*
+ * Transport over the client's DatagramSocket (the default, transport=socket).
+ * The encoded packet of each outstanding segment is kept for retransmission. Acked segments return their
+ * Wire (a packet and, for codec=bin, the buffer it is encoded into) to a pool for later segments, and one
+ * receive packet is reused for every Ack.
+ */
+public class SocketTransport implements Transport {
+
+	private final DatagramSocket socket;   // the socket that the client binds to
+	private final InetAddress ipAddress;   // the address of the server
+	private final int portNumber;          // the port the server is listening on
+	private final String codec;            // wire codec for segments
+	private final SegmentChecksum checksum; // checksum algorithm of the flow
+	private final ArrayDeque<Wire> pool = new ArrayDeque<>(); // released Wires, each with a buffer of bufferSize bytes
+	private final int bufferSize;          // the largest datagram sent (the byte budget, at least MAX_Segment_SIZE)
+	private final byte[] ackBuf = new byte[Protocol.MAX_Segment_SIZE];
+	private final DatagramPacket ackPacket = new DatagramPacket(ackBuf, ackBuf.length);
+	private int soTimeout = -1;            // the timeout currently set on the socket
+
+	/* constructor */
+	public SocketTransport(DatagramSocket socket, InetAddress ipAddress, int portNumber, String codec, SegmentChecksum checksum) {
+		this(socket, ipAddress, portNumber, codec, checksum, Protocol.MAX_Segment_SIZE);
+	}
+
+	/* constructor with the size of the segment buffers */
+	public SocketTransport(DatagramSocket socket, InetAddress ipAddress, int portNumber, String codec, SegmentChecksum checksum, int bufferSize) {
+		this.socket = socket;
+		this.ipAddress = ipAddress;
+		this.portNumber = portNumber;
+		this.codec = codec;
+		this.checksum = checksum;
+		this.bufferSize = bufferSize;
+	}
+
+	@Override
+	public Wire encode(Segment seg) throws IOException {
+		Wire wire = pool.poll();
+		if (wire == null) {
+			wire = new Wire();
+			wire.buffer = ByteBuffer.allocate(bufferSize);
+			wire.packet = new DatagramPacket(wire.buffer.array(), 0, ipAddress, portNumber);
+		}
+		if (SegmentCodec.BINARY.equals(codec)) {
+			wire.buffer.clear();
+			SegmentCodec.encodeBinary(seg, wire.buffer, checksum);
+			wire.packet.setData(wire.buffer.array(), 0, wire.buffer.position());
+		} else {
+			// Serialization Builds A New Array Anyway, So The Packet Just Points At It
+			wire.packet.setData(SegmentCodec.encode(seg, codec, checksum));
+		}
+		wire.length = wire.packet.getLength();
+		return wire;
+	}
+
+	@Override
+	public void send(Wire wire) throws IOException {
+		socket.send(wire.packet);
+	}
+
+	@Override
+	public boolean receiveAck(int timeoutMs, Ack ack) throws IOException {
+		if (timeoutMs != soTimeout) {
+			socket.setSoTimeout(timeoutMs);
+			soTimeout = timeoutMs;
+		}
+		ackPacket.setLength(ackBuf.length);
+		try {
+			socket.receive(ackPacket);
+		} catch (SocketTimeoutException e) {
+			return false;
+		}
+		// A Damaged Ack Is Treated Like A Lost One
+		Segment ackSeg;
+		try {
+			ackSeg = SegmentCodec.decode(ackPacket, checksum);
+		} catch (IOException e) {
+			return false;
+		}
+		if (ackSeg.getType() != SegmentType.Ack || !ackSeg.isValid()) return false;
+		ack.seqNum = ackSeg.getSeqNum();
+		ack.sackBits = SegmentCodec.parseSackBits(ackSeg.getPayLoad());
+		return true;
+	}
+
+	@Override
+	public void release(Wire wire) {
+		pool.add(wire);
+	}
+
+	@Override
+	public void close() {
+		try {
+			socket.setSoTimeout(0);
+		} catch (IOException e) {
+			// The Socket Is Already Closed
+		}
+	}
+}
@@ -0,0 +1,164 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketTimeoutException;
+
+/*
+ * Server side of a striped transfer (sr mode with stripes=<n> in the Meta segment).
+ * Stripe 0 arrives on the server's socket and stripe i on port + i, each one a selective repeat flow with
+ * its own receive window that ends with an End segment. Every stripe is received by its own thread, and all
+ * of them append to the one ReadingWriter of the output file named in the Meta segment, so each reading is
+ * written once and store=on and format=indexed apply as for any transfer. The segments of different stripes
+ * are written as they arrive, so they interleave in the output; each segment's header names its stripe.
+ * The output file is complete once every stripe's End segment has been accepted.
+ */
+public class StripedReceiver {
+
+	private final DatagramSocket serverSocket;   // receives stripe 0 (and received the Meta segment)
+	private final float loss;                    // probability of simulating a lost Ack
+	private final int stripes;
+	private final String outputFileName;
+	private final int[] readings;                // readings received per stripe
+	private final boolean[] ended;               // the stripe's End segment was accepted in order
+	private ReadingWriter writer;                // shared by the stripes; null once closed (guarded by this)
+	private int open;                            // stripes whose End segment has not arrived yet (guarded by this)
+
+	/* constructor */
+	public StripedReceiver(DatagramSocket serverSocket, float loss, int stripes, String outputFileName) {
+		this.serverSocket = serverSocket;
+		this.loss = loss;
+		this.stripes = stripes;
+		this.outputFileName = outputFileName;
+		this.readings = new int[stripes];
+		this.ended = new boolean[stripes];
+		this.open = stripes;
+	}
+
+	/* receives every stripe in parallel into the output file */
+	public void receive() throws IOException, InterruptedException {
+		// The Offset Tags Of A Resumable Transfer Only Make Sense For One Flow (The Client Never Sends Both)
+		if (Protocol.instance.isResumable()) throw new IOException("A Striped Transfer Cannot Be Resumed");
+		Log.info("SERVER: Receiving " + stripes + " Stripes On Ports " + serverSocket.getLocalPort() + "-" + (serverSocket.getLocalPort() + stripes - 1));
+		DatagramSocket[] sockets = new DatagramSocket[stripes];
+		Thread[] threads = new Thread[stripes];
+		writer = Protocol.instance.openWriter();
+		try {
+			for (int i = 0; i < stripes; i++) {
+				sockets[i] = i == 0 ? serverSocket : new DatagramSocket(serverSocket.getLocalPort() + i);
+			}
+			for (int i = 0; i < stripes; i++) {
+				final int stripe = i;
+				threads[i] = new Thread(() -> receiveStripe(stripe, sockets[stripe]), "stripe-" + stripe);
+				threads[i].start();
+			}
+			for (Thread thread : threads) {
+				if (thread != null) thread.join();
+			}
+		} finally {
+			for (DatagramSocket socket : sockets) {
+				if (socket != null) socket.close();
+			}
+			// A Stripe Whose Client Went Quiet Leaves The Output Incomplete, But What Arrived Is Kept
+			closeWriter(false);
+		}
+		long total = 0;
+		for (int i = 0; i < stripes; i++) {
+			total += readings[i];
+			if (!ended[i]) Log.warn("SERVER: Stripe " + i + " Is Incomplete (" + readings[i] + " Readings Received)");
+		}
+		Log.info("SERVER: Received " + stripes + " Stripes (" + total + " Readings) Into " + outputFileName);
+	}
+
+	/* receives one stripe until its End segment has arrived (then lingers) or its client goes quiet */
+	private void receiveStripe(int stripe, DatagramSocket socket) {
+		String name = "SERVER [STRIPE " + stripe + "]";
+		ReceiveWindow window = new ReceiveWindow(Protocol.instance.getIntOption("window", Protocol.DEFAULT_WINDOW));
+		boolean selectiveAcks = Protocol.SACK.equals(Protocol.instance.getOption("ack", ""));
+		String codec = Protocol.instance.getCodec();
+		SegmentChecksum checksum = Protocol.instance.getChecksum();
+		byte[] buf = new byte[Protocol.instance.getReceiveBufferSize()];
+		DatagramPacket incomingPacket = new DatagramPacket(buf, buf.length);
+		try {
+			AckSender acks = new AckSender(name, socket, codec, checksum, selectiveAcks, Protocol.instance.getIntOption("delack", 1), window.getWindowSize(), loss);
+			socket.setSoTimeout(Protocol.IDLE_TIMEOUT);
+			while (true) {
+				incomingPacket.setLength(buf.length);
+				try {
+					acks.receive(incomingPacket);
+				} catch (SocketTimeoutException e) {
+					if (!ended[stripe]) Log.info(name + ": No Packets Received For " + Protocol.IDLE_TIMEOUT + "ms. Keeping The " + readings[stripe] + " Readings Received.");
+					break;
+				}
+
+				Segment seg;
+				try {
+					seg = SegmentCodec.decode(incomingPacket, checksum);
+				} catch (IOException e) {
+					Log.warn(name + ": Dropping Undecodable Segment: " + e.getMessage());
+					continue;
+				}
+				if (seg.getType() != SegmentType.Data && seg.getType() != SegmentType.End) continue;
+
+				if (Log.isDebug()) Log.debug(name + ": Receive: " + seg.getType().toString().toUpperCase() + " [SEQ#" + seg.getSeqNum() + "](size:" + seg.getSize() + ")");
+				TransferMetrics.instance.segmentReceived(incomingPacket.getLength());
+				if (!seg.isValid()) {
+					Log.warn(name + ": Calculated Checksum INVALID, Not Sending Any ACK");
+					TransferMetrics.instance.checksumFailure();
+					continue;
+				}
+
+				// Duplicates Are Re-Acked; Segments Beyond The Window Are Dropped Without An Ack
+				boolean duplicate = window.isDuplicate(seg.getSeqNum());
+				if (duplicate) {
+					Log.warn(name + ": Duplicate DATA Is Detected");
+					TransferMetrics.instance.duplicate();
+				} else if (!window.offer(seg)) {
+					continue;
+				} else {
+					TransferMetrics.instance.segmentAccepted(seg.getSize());
+				}
+				boolean endedNow = false;
+				for (Segment ready : window.drain()) {
+					if (ready.getType() == SegmentType.End) {
+						ended[stripe] = true;
+						endedNow = true;
+					} else {
+						readings[stripe] += append(stripe, ready);
+					}
+				}
+
+				// The Last Stripe To End Completes The Output File Before Its Final Ack Goes Out
+				if (endedNow) {
+					Log.info(name + ": Complete With " + readings[stripe] + " Readings");
+					stripeEnded();
+				}
+				acks.ack(incomingPacket.getAddress(), incomingPacket.getPort(), seg.getSeqNum(), window, duplicate || endedNow);
+
+				// Linger To Re-Ack Retransmissions Of Lost Final Acks
+				if (endedNow) socket.setSoTimeout(Protocol.LINGER_TIMEOUT);
+			}
+		} catch (IOException e) {
+			Log.error(name + ": Error: " + e.getMessage());
+		}
+	}
+
+	/* hands an in-order Data segment of a stripe to the shared writer; returns its reading count */
+	private synchronized int append(int stripe, Segment seg) throws IOException {
+		if (writer == null) throw new IOException("Output File " + outputFileName + " Is Already Closed");
+		return writer.append(seg.getSeqNum(), seg.getPayLoad(), stripe);
+	}
+
+	/* counts a stripe's End segment; the last one marks the output file complete and closes it */
+	private synchronized void stripeEnded() throws IOException {
+		if (--open == 0) closeWriter(true);
+	}
+
+	/* closes the shared writer once */
+	private synchronized void closeWriter(boolean complete) throws IOException {
+		if (writer == null) return;
+		ReadingWriter closing = writer;
+		writer = null;
+		if (complete) closing.markComplete();
+		closing.close();
+	}
+}
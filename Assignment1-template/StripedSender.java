@@ -0,0 +1,62 @@
+import java.io.IOException;
+import java.net.DatagramSocket;
+
+/*
+ * Client side of a striped transfer (sr mode with stripes=<n>).
+ * The CSV file is split into n byte ranges at line boundaries, and each range (stripe) is sent by its own
+ * selective repeat sender, on its own thread and socket, to its own server port: stripe i goes to the
+ * server's port + i. Each stripe ends with an End segment; the server writes the stripes as they arrive.
+ */
+public class StripedSender {
+
+	private final Protocol protocol;
+	private final int stripes;
+
+	/* constructor */
+	public StripedSender(Protocol protocol, int stripes) {
+		this.protocol = protocol;
+		this.stripes = stripes;
+	}
+
+	/* sends every stripe in parallel and returns once they have all been acknowledged */
+	public void send() throws IOException, InterruptedException {
+		long[] bounds = CsvCursor.splitAtLines(protocol.getInputFile(), stripes);
+		Thread[] threads = new Thread[stripes];
+		for (int i = 0; i < stripes; i++) {
+			final int stripe = i;
+			Log.info("CLIENT: Stripe " + stripe + " Sends Bytes " + bounds[i] + "-" + bounds[i + 1] + " To Port " + (protocol.getPortNumber() + stripe));
+			threads[i] = new Thread(() -> sendStripe(stripe, bounds[stripe], bounds[stripe + 1]), "stripe-" + stripe);
+			threads[i].start();
+		}
+		for (Thread thread : threads) thread.join();
+		Log.info("CLIENT: All " + stripes + " Stripes Sent");
+	}
+
+	/* sends the lines in [start, end) through the stripe's own socket (stripe 0 uses the socket the Meta segment went from) */
+	private void sendStripe(int stripe, long start, long end) {
+		DatagramSocket socket = null;
+		try {
+			socket = stripe == 0 ? protocol.getSocket() : protocol.openSocket();
+			Transport transport = protocol.openTransport(socket, protocol.getPortNumber() + stripe);
+			try (CsvCursor cursor = CsvCursor.open(protocol, start, end)) {
+				new SlidingWindowSender(protocol, transport, protocol.newRttEstimator(), true).send(cursor);
+			}
+		} catch (IOException e) {
+			Log.error("CLIENT: Stripe " + stripe + " Error: " + e.getMessage());
+			System.exit(0);
+		} finally {
+			if (stripe > 0 && socket != null) socket.close();
+		}
+	}
+
+	/* opens a striped sender on the initialised protocol and sends its CSV file */
+	public static void send(Protocol protocol) {
+		try {
+			new StripedSender(protocol, protocol.getIntOption("stripes", 1)).send();
+		} catch (IOException | InterruptedException e) {
+			Log.error("CLIENT: Error: " + e.getMessage());
+			protocol.getSocket().close();
+			System.exit(0);
+		}
+	}
+}
@@ -0,0 +1,256 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Source of the live streaming mode tail=<ms>: follows the client's CSV file as it grows (like tail -f, from
+ * its first line), or reads standard input when the file name is -.
+ *
+ * A reader thread parses every complete line as it appears (a tailed file is polled every POLL_INTERVAL ms;
+ * a last line without its '\n' waits until the writer finishes it) and queues the readings, up to
+ * QUEUE_CAPACITY of them, so a slow server holds the reader back rather than filling the heap. The sender
+ * takes them as patches: a patch goes out as soon as it is full (the patch size or budget=<bytes>), or once
+ * its oldest reading has waited maxDelay ms, whichever comes first.
+ *
+ * Standard input ends the stream at its end of file. A tailed file has no end, so the stream ends when the
+ * client is stopped (Ctrl+C): the readings already in the file are still sent, with the End segment, before
+ * the client exits (waiting no longer than STOP_TIMEOUT ms for the server to ack them). A file that shrinks
+ * was truncated or rotated in place, and is followed again from its start.
+ */
+public class TailReader implements Closeable {
+
+	static final String STDIN = "-";                  // the CSV file name that reads standard input
+	static final int POLL_INTERVAL = 10;              // ms between checks of a tailed file for new bytes
+	static final int QUEUE_CAPACITY = 65536;          // readings parsed ahead of the sender
+	static final int STOP_TIMEOUT = Protocol.IDLE_TIMEOUT; // ms a stopped client waits for the rest of the stream to be acked
+
+	/* one parsed reading, with the size of its line and when it was read */
+	private static class Line {
+		final String reading;
+		final int bytes;        // bytes of the line, with its '\n'
+		final long readAt;      // System.nanoTime() when the line was read
+
+		Line(String reading, int bytes, long readAt) {
+			this.reading = reading;
+			this.bytes = bytes;
+			this.readAt = readAt;
+		}
+	}
+
+	private final File file;                           // the followed file, null for standard input
+	private final long maxDelayNanos;
+	private final BlockingQueue<Line> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+	private final ArrayDeque<Line> pending = new ArrayDeque<>(); // readings taken off the queue but not sent yet
+	private final CountDownLatch closed = new CountDownLatch(1);
+	private final Thread thread;
+	private volatile boolean stopping;                 // the client is being stopped: read what is there, then end
+	private volatile boolean finished;                 // the reader has queued its last reading
+	private volatile IOException failure;
+	private long position;                             // bytes of input handed out in patches
+	private Thread shutdownHook;
+
+	/* constructor; starts reading the file (or standard input for -) at once */
+	public TailReader(File file, int maxDelayMs) {
+		this.file = STDIN.equals(file.getPath()) ? null : file;
+		this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMs);
+		this.thread = new Thread(this::read, "tail-" + file.getName());
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/* the input of the initialised protocol, sent with a delay of at most the tail=<ms> option */
+	static TailReader open(Protocol protocol) {
+		return new TailReader(protocol.getInputFile(), protocol.getIntOption("tail", 0));
+	}
+
+	/*
+	 * takes the next patch of at most maxReadings readings and maxPayloadBytes bytes if it is due: full, or
+	 * holding a reading that has waited maxDelay ms, or the last of the input; returns null if none is due yet
+	 */
+	public CsvCursor.Patch readPatch(int maxReadings, int maxPayloadBytes) throws IOException {
+		if (failure != null) throw failure;
+		boolean ended = finished;
+		if (pending.size() < maxReadings) queue.drainTo(pending, maxReadings - pending.size());
+		if (pending.isEmpty()) return null;
+
+		StringBuilder payloadBuilder = new StringBuilder();
+		int linesRead = 0;
+		int payloadBytes = 0;
+		int bytes = 0;
+		for (Line line : pending) {
+			if (linesRead == maxReadings) break;
+			int readingBytes = CsvCursor.utf8Length(line.reading) + (linesRead > 0 ? 1 : 0);
+			if (linesRead > 0 && payloadBytes + readingBytes > maxPayloadBytes) break;
+			if (linesRead > 0) payloadBuilder.append(';');
+			payloadBuilder.append(line.reading);
+			payloadBytes += readingBytes;
+			bytes += line.bytes;
+			linesRead++;
+		}
+
+		// A Patch That Is Not Full Waits Until Its Oldest Reading Is Due, Unless Nothing More Can Come
+		boolean full = linesRead < pending.size() || linesRead == maxReadings;
+		boolean due = System.nanoTime() - pending.peekFirst().readAt >= maxDelayNanos || (ended && queue.isEmpty());
+		if (!full && !due) return null;
+
+		for (int i = 0; i < linesRead; i++) pending.pollFirst();
+		long offset = position;
+		position += bytes;
+		return new CsvCursor.Patch(payloadBuilder.toString(), linesRead, offset, position);
+	}
+
+	/* true once every reading of the input has been handed out */
+	public boolean isFinished() {
+		return finished && queue.isEmpty() && pending.isEmpty();
+	}
+
+	/* ms until the oldest waiting reading is due; maxDelay if none is waiting */
+	public long waitMillis() {
+		if (pending.isEmpty() && queue.isEmpty()) return TimeUnit.NANOSECONDS.toMillis(maxDelayNanos);
+		Line oldest = pending.isEmpty() ? queue.peek() : pending.peekFirst();
+		if (oldest == null) return 0;
+		return Math.max(0, TimeUnit.NANOSECONDS.toMillis(oldest.readAt + maxDelayNanos - System.nanoTime()));
+	}
+
+	/* waits up to timeoutMs for the next reading (used while nothing is in flight) */
+	public void await(long timeoutMs) throws IOException {
+		if (!pending.isEmpty() || finished) {
+			sleep(Math.min(timeoutMs, POLL_INTERVAL));
+			return;
+		}
+		try {
+			Line line = queue.poll(Math.max(1, timeoutMs), TimeUnit.MILLISECONDS);
+			if (line != null) pending.add(line);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted While Waiting For Input");
+		}
+	}
+
+	/* ends the stream with the readings already read: a tailed file is read to its current end first */
+	public void stop() {
+		stopping = true;
+		if (file == null) finished = true;  // a blocked read of standard input cannot be woken, so lines after this are dropped
+	}
+
+	/* stops the stream when the client is stopped, and holds the exit until the rest has been sent (or STOP_TIMEOUT) */
+	public void stopOnShutdown() {
+		shutdownHook = new Thread(() -> {
+			Log.info("CLIENT: Stopping. Sending The Readings Read So Far");
+			stop();
+			try {
+				closed.await(STOP_TIMEOUT, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}, "tail-shutdown");
+		Runtime.getRuntime().addShutdownHook(shutdownHook);
+	}
+
+	/* reads the input, a line at a time, until it ends or the stream is stopped */
+	private void read() {
+		try {
+			if (file == null) {
+				readStdin();
+			} else {
+				followFile();
+			}
+		} catch (IOException e) {
+			failure = e;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			finished = true;
+		}
+	}
+
+	private void readStdin() throws IOException, InterruptedException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+		String line;
+		while (!stopping && (line = in.readLine()) != null) {
+			queueLine(line, CsvCursor.utf8Length(line) + 1);
+		}
+	}
+
+	private void followFile() throws IOException, InterruptedException {
+		try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+			byte[] buf = new byte[64 * 1024];
+			ByteArrayOutputStream partial = new ByteArrayOutputStream();  // the line being read, up to its '\n'
+			long offset = 0;
+			while (true) {
+				boolean lastRead = stopping;  // once stopping, the bytes already in the file are the last ones
+				long length = in.length();
+				if (length < offset) {
+					Log.warn("CLIENT: " + file + " Was Truncated, Following It From The Start");
+					offset = 0;
+					partial.reset();
+				}
+				if (length > offset) {
+					in.seek(offset);
+					int n = in.read(buf, 0, (int) Math.min(buf.length, length - offset));
+					offset += n;
+					int lineStart = 0;
+					for (int i = 0; i < n; i++) {
+						if (buf[i] != '\n') continue;
+						partial.write(buf, lineStart, i - lineStart);
+						queueLine(partial, partial.size() + 1);
+						partial.reset();
+						lineStart = i + 1;
+					}
+					partial.write(buf, lineStart, n - lineStart);
+					if (offset < length) continue;  // more is there already
+				}
+				if (lastRead) break;
+				Thread.sleep(POLL_INTERVAL);
+			}
+			if (partial.size() > 0) queueLine(partial, partial.size());
+		}
+	}
+
+	private void queueLine(ByteArrayOutputStream bytes, int size) throws InterruptedException {
+		String line = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+		if (line.endsWith("\r")) line = line.substring(0, line.length() - 1);
+		queueLine(line, size);
+	}
+
+	private void queueLine(String line, int size) throws InterruptedException {
+		String reading = Protocol.formatReading(line);
+		if (reading != null) queue.put(new Line(reading, size, System.nanoTime()));
+	}
+
+	private static void sleep(long ms) throws IOException {
+		try {
+			Thread.sleep(Math.max(1, ms));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted While Waiting For Input");
+		}
+	}
+
+	/* getter method */
+	public long position() {
+		return position;
+	}
+
+	/* releases a client that is being stopped */
+	@Override
+	public void close() {
+		closed.countDown();
+		if (shutdownHook == null) return;
+		try {
+			Runtime.getRuntime().removeShutdownHook(shutdownHook);
+		} catch (IllegalStateException e) {
+			// Already Shutting Down: The Hook Is Waiting For This
+		}
+	}
+}
@@ -0,0 +1,244 @@
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.ObjectName;
+
+/*
+ * Counters for one process's transfers (the client, or the server with all of its sessions).
+ *
+ * The protocol code records segments sent and received, retransmissions, timeouts, fast retransmits,
+ * duplicates, checksum failures, bytes on the wire against the payload bytes that were useful (sent or
+ * accepted for the first time), and a histogram of the measured round trip times. Recording is lock free, so the sessions of a
+ * multi-client server can share the instance.
+ *
+ * Options (given on the command line, they are not sent to the other side):
+ *      metrics=<ms> prints a snapshot as one JSON line prefixed with "METRICS: " every <ms> milliseconds,
+ *      and a final one when the process exits
+ *      jmx=on registers the counters as an MBean (see TransferMetricsMBean) so jconsole or a JMX agent can read them
+ */
+public class TransferMetrics implements TransferMetricsMBean {
+
+	// RTT Histogram: Log-Linear Buckets Over Microseconds, Four Per Power Of Two (At Most 25% Wide)
+	private static final int SUB_BUCKET_BITS = 2;
+	private static final int BUCKETS = 64 << SUB_BUCKET_BITS;
+
+	// Shared instance so the client, the server and the sessions record into the same counters
+	public static final TransferMetrics instance = new TransferMetrics();
+
+	private final LongAdder segmentsSent = new LongAdder();       // Data/End segments put on the wire, including retransmissions
+	private final LongAdder segmentsReceived = new LongAdder();   // Data/End segments decoded by the server
+	private final LongAdder retransmissions = new LongAdder();    // segments sent again after a timeout
+	private final LongAdder timeouts = new LongAdder();           // retransmission timers that expired
+	private final LongAdder fastRetransmits = new LongAdder();    // segments resent on duplicate Acks, before their timer expired
+	private final LongAdder duplicates = new LongAdder();         // segments the server had already accepted
+	private final LongAdder checksumFailures = new LongAdder();   // segments dropped for a wrong checksum
+	private final LongAdder acksSent = new LongAdder();
+	private final LongAdder acksReceived = new LongAdder();
+	private final LongAdder wireBytes = new LongAdder();          // encoded bytes of the segments sent or received
+	private final LongAdder usefulBytes = new LongAdder();        // payload bytes sent or accepted for the first time
+	private final AtomicLongArray rttBuckets = new AtomicLongArray(BUCKETS);
+	private final LongAdder rttSamples = new LongAdder();
+	private final AtomicLong rttMaxMicros = new AtomicLong();
+	private final DoubleAdder cwnd = new DoubleAdder();           // congestion window in segments (cc mode), over all flows
+
+	private final long startedAt = System.nanoTime();
+	private String role = "client";
+	private ScheduledExecutorService reporter;   // prints the periodic snapshot, null unless metrics=<ms>
+
+	/* starts the reporting the options ask for; role names this process in the snapshot and the MBean */
+	public synchronized void start(String role, Protocol protocol) {
+		this.role = role;
+		if ("on".equals(protocol.getOption("jmx", "off"))) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("transfer:type=TransferMetrics,role=" + role));
+			} catch (Exception e) {
+				Log.warn(role.toUpperCase() + ": Cannot Register Metrics MBean: " + e.getMessage());
+			}
+		}
+
+		int periodMs = protocol.getIntOption("metrics", 0);
+		if (periodMs > 0 && reporter == null) {
+			reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "metrics-reporter");
+				t.setDaemon(true);
+				return t;
+			});
+			reporter.scheduleAtFixedRate(this::report, periodMs, periodMs, TimeUnit.MILLISECONDS);
+			// The Client Ends With System.exit, So The Final Snapshot Is Logged On The Way Out
+			Log.atExit(this::report);
+		}
+	}
+
+	/* prints one snapshot line (whatever the log level, as it was asked for) */
+	public void report() {
+		Log.print("METRICS: " + getSnapshot());
+	}
+
+	/* a segment (Data or End) was put on the wire; payloadBytes counts as useful only on the first send */
+	public void segmentSent(int wireLength, int payloadBytes, boolean retransmission) {
+		segmentsSent.increment();
+		wireBytes.add(wireLength);
+		if (retransmission) retransmissions.increment();
+		else usefulBytes.add(payloadBytes);
+	}
+
+	/* a segment (Data or End) was received and decoded by the server */
+	public void segmentReceived(int wireLength) {
+		segmentsReceived.increment();
+		wireBytes.add(wireLength);
+	}
+
+	/* the server accepted a segment for the first time */
+	public void segmentAccepted(int payloadBytes) {
+		usefulBytes.add(payloadBytes);
+	}
+
+	public void timeout() {
+		timeouts.increment();
+	}
+
+	public void fastRetransmit() {
+		fastRetransmits.increment();
+	}
+
+	public void duplicate() {
+		duplicates.increment();
+	}
+
+	public void checksumFailure() {
+		checksumFailures.increment();
+	}
+
+	public void ackSent() {
+		acksSent.increment();
+	}
+
+	public void ackReceived() {
+		acksReceived.increment();
+	}
+
+	/* a flow's congestion window changed by delta segments (a flow adds its initial window when it starts) */
+	public void cwndChanged(double delta) {
+		cwnd.add(delta);
+	}
+
+	/* records the round trip time of a segment that was sent once */
+	public void rttSample(long rttNanos) {
+		long micros = Math.max(0, rttNanos / 1000);
+		rttBuckets.incrementAndGet(bucketOf(micros));
+		rttSamples.increment();
+		rttMaxMicros.accumulateAndGet(micros, Math::max);
+	}
+
+	/* the histogram bucket of a value: the power of two it falls in, split into 2^SUB_BUCKET_BITS linear parts */
+	static int bucketOf(long micros) {
+		if (micros < (1 << SUB_BUCKET_BITS)) return (int) micros;
+		int magnitude = 63 - Long.numberOfLeadingZeros(micros);
+		int sub = (int) (micros >>> (magnitude - SUB_BUCKET_BITS)) & ((1 << SUB_BUCKET_BITS) - 1);
+		return ((magnitude - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS) + sub;
+	}
+
+	/* the largest value that falls in a bucket (the inverse of bucketOf) */
+	static long bucketUpperBound(int bucket) {
+		if (bucket < (1 << SUB_BUCKET_BITS)) return bucket;
+		int magnitude = (bucket >>> SUB_BUCKET_BITS) + SUB_BUCKET_BITS - 1;
+		long sub = bucket & ((1 << SUB_BUCKET_BITS) - 1);
+		long lower = (1L << magnitude) + (sub << (magnitude - SUB_BUCKET_BITS));
+		return lower + (1L << (magnitude - SUB_BUCKET_BITS)) - 1;
+	}
+
+	/* the RTT percentile (0-100) in milliseconds, read from the histogram; 0 before the first sample */
+	public double rttPercentile(double percentile) {
+		long total = 0;
+		long[] counts = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = rttBuckets.get(i);
+			total += counts[i];
+		}
+		if (total == 0) return 0;
+		long rank = (long) Math.ceil(percentile / 100.0 * total);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank && counts[i] > 0) return Math.min(bucketUpperBound(i), rttMaxMicros.get()) / 1000.0;
+		}
+		return rttMaxMicros.get() / 1000.0;
+	}
+
+	/* getter methods (the MBean attributes) */
+	public long getSegmentsSent() {
+		return segmentsSent.sum();
+	}
+	public long getSegmentsReceived() {
+		return segmentsReceived.sum();
+	}
+	public long getRetransmissions() {
+		return retransmissions.sum();
+	}
+	public long getTimeouts() {
+		return timeouts.sum();
+	}
+	public long getFastRetransmits() {
+		return fastRetransmits.sum();
+	}
+	public long getDuplicates() {
+		return duplicates.sum();
+	}
+	public long getChecksumFailures() {
+		return checksumFailures.sum();
+	}
+	public long getAcksSent() {
+		return acksSent.sum();
+	}
+	public long getAcksReceived() {
+		return acksReceived.sum();
+	}
+	public long getWireBytes() {
+		return wireBytes.sum();
+	}
+	public long getUsefulBytes() {
+		return usefulBytes.sum();
+	}
+	public double getEfficiency() {
+		long wire = getWireBytes();
+		return wire == 0 ? 0 : 100.0 * getUsefulBytes() / wire;
+	}
+	public long getRttSamples() {
+		return rttSamples.sum();
+	}
+	public double getRttP50() {
+		return rttPercentile(50);
+	}
+	public double getRttP90() {
+		return rttPercentile(90);
+	}
+	public double getRttP99() {
+		return rttPercentile(99);
+	}
+	public double getRttMax() {
+		return rttMaxMicros.get() / 1000.0;
+	}
+	public double getCwnd() {
+		return cwnd.sum();
+	}
+
+	/* every counter as one line of JSON, with the useful throughput since the process started */
+	public String getSnapshot() {
+		double seconds = (System.nanoTime() - startedAt) / 1e9;
+		return String.format(Locale.ROOT,
+				"{\"role\":\"%s\",\"time\":%d,\"uptimeSec\":%.3f,\"segmentsSent\":%d,\"segmentsReceived\":%d,\"retransmissions\":%d,"
+				+ "\"timeouts\":%d,\"fastRetransmits\":%d,\"duplicates\":%d,\"checksumFailures\":%d,\"acksSent\":%d,\"acksReceived\":%d,"
+				+ "\"wireBytes\":%d,\"usefulBytes\":%d,\"efficiency\":%.2f,\"usefulBytesPerSec\":%.1f,"
+				+ "\"rttSamples\":%d,\"rttP50Ms\":%.3f,\"rttP90Ms\":%.3f,\"rttP99Ms\":%.3f,\"rttMaxMs\":%.3f,\"cwnd\":%.2f}",
+				role, System.currentTimeMillis(), seconds, getSegmentsSent(), getSegmentsReceived(), getRetransmissions(),
+				getTimeouts(), getFastRetransmits(), getDuplicates(), getChecksumFailures(), getAcksSent(), getAcksReceived(),
+				getWireBytes(), getUsefulBytes(), getEfficiency(), seconds > 0 ? getUsefulBytes() / seconds : 0,
+				getRttSamples(), getRttP50(), getRttP90(), getRttP99(), getRttMax(), getCwnd());
+	}
+}
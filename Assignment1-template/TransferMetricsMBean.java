@@ -0,0 +1,26 @@
+/*
+ * The JMX view of TransferMetrics (registered as transfer:type=TransferMetrics,role=<client|server> with jmx=on).
+ * Counters are totals since the process started; RTT percentiles are in milliseconds; the congestion
+ * window (cc mode) is the current one in segments, summed over the flows of a striped transfer.
+ */
+public interface TransferMetricsMBean {
+	long getSegmentsSent();
+	long getSegmentsReceived();
+	long getRetransmissions();
+	long getTimeouts();
+	long getFastRetransmits();
+	long getDuplicates();
+	long getChecksumFailures();
+	long getAcksSent();
+	long getAcksReceived();
+	long getWireBytes();
+	long getUsefulBytes();
+	double getEfficiency();
+	long getRttSamples();
+	double getRttP50();
+	double getRttP90();
+	double getRttP99();
+	double getRttMax();
+	double getCwnd();
+	String getSnapshot();
+}
@@ -0,0 +1,41 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.nio.ByteBuffer;
+
+/*
+ * How the selective repeat sender puts segments on the wire and reads Acks back.
+ * A segment is encoded once into a Wire when it is first sent. The Wire is kept while the segment is
+ * outstanding, so a retransmission resends exactly the same bytes without encoding them again, and it
+ * is released once the segment is acknowledged, to be reused for a later segment.
+ */
+public interface Transport extends Closeable {
+
+	/*
+	 * the encoded form of one outstanding segment (a packet for sockets, a direct buffer for channels);
+	 * a transport keeps the Wires it gets back from release and encodes later segments into them
+	 */
+	final class Wire {
+		DatagramPacket packet;
+		ByteBuffer buffer;
+		int length;          // encoded size in bytes
+	}
+
+	/* the fields of a received Ack, filled in place by receiveAck so no Ack object is allocated per packet */
+	final class Ack {
+		int seqNum;          // the acked seqNum, or the cumulative ack point with ack=sack
+		long sackBits;       // with ack=sack: bit i set = segment seqNum + 1 + i was received
+	}
+
+	/* encodes the segment once */
+	Wire encode(Segment seg) throws IOException;
+
+	/* sends (or resends) an encoded segment */
+	void send(Wire wire) throws IOException;
+
+	/* waits up to timeoutMs for an Ack and fills in its fields; returns false if none arrived */
+	boolean receiveAck(int timeoutMs, Ack ack) throws IOException;
+
+	/* returns the resources of an acknowledged segment */
+	void release(Wire wire);
+}
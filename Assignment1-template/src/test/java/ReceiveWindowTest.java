@@ -0,0 +1,73 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/*
+ * The receive window of sr mode: what it buffers and releases, and the SACK bitmap it reports at its edges.
+ */
+public class ReceiveWindowTest {
+
+	private static Segment data(int seqNum) {
+		return new Segment(seqNum, SegmentType.Data, "A,1,[1.0, 2.0, 3.0]", 19);
+	}
+
+	@Test
+	public void emptyWindowHasNoSackBits() {
+		ReceiveWindow window = new ReceiveWindow(8);
+		assertEquals(0, window.getCumulativeAck());
+		assertEquals(0L, window.getSackBits());
+	}
+
+	@Test
+	public void inOrderSegmentIsDrainedAndNeverSacked() {
+		ReceiveWindow window = new ReceiveWindow(8);
+		assertTrue(window.offer(data(1)));
+		assertEquals(1, window.drain().size());
+		assertEquals(1, window.getCumulativeAck());
+		assertEquals(0L, window.getSackBits());
+		assertTrue(window.isDuplicate(1));
+	}
+
+	@Test
+	public void lastSegmentInsideTheWindowIsSacked() {
+		ReceiveWindow window = new ReceiveWindow(8);
+		assertTrue(window.offer(data(8)));
+		assertEquals(1L << 7, window.getSackBits());
+	}
+
+	@Test
+	public void segmentBeyondTheWindowIsDroppedAndNotSacked() {
+		ReceiveWindow window = new ReceiveWindow(8);
+		assertFalse(window.offer(data(9)));
+		assertFalse(window.isDuplicate(9));
+		assertEquals(0L, window.getSackBits());
+	}
+
+	@Test
+	public void bitmapShiftsWhenTheGapFills() {
+		ReceiveWindow window = new ReceiveWindow(8);
+		window.offer(data(3));
+		window.offer(data(5));
+		assertEquals(0b10100L, window.getSackBits());
+
+		window.offer(data(1));
+		assertEquals(1, window.drain().size());
+		assertEquals(1, window.getCumulativeAck());
+		assertEquals(0b1010L, window.getSackBits());
+
+		window.offer(data(2));
+		assertEquals(2, window.drain().size());
+		assertEquals(3, window.getCumulativeAck());
+		assertEquals(0b10L, window.getSackBits());
+	}
+
+	@Test
+	public void bitmapCoversSixtyFourSegmentsOfAWiderWindow() {
+		ReceiveWindow window = new ReceiveWindow(100);
+		assertTrue(window.offer(data(64)));
+		assertTrue(window.offer(data(65)));
+		assertEquals(Long.MIN_VALUE, window.getSackBits());
+	}
+}
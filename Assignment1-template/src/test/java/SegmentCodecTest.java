@@ -0,0 +1,187 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+/*
+ * The segment codecs: round trips of both encodeBinary overloads and the java codec, damaged and truncated
+ * headers, the flow's checksum algorithm, and binary Acks with their SACK bitmap, read in place and through decode.
+ */
+public class SegmentCodecTest {
+
+	private static final String PAYLOAD = "A,1720456123,[4.0, 84.74, 1020.6];B,1720456124,[7.7, 49.54, 1008.0]";
+
+	private static Segment data(int seqNum) {
+		return new Segment(seqNum, SegmentType.Data, PAYLOAD, PAYLOAD.length());
+	}
+
+	private static void assertSameData(Segment seg, int seqNum) {
+		assertEquals(SegmentType.Data, seg.getType());
+		assertEquals(seqNum, seg.getSeqNum());
+		assertEquals(PAYLOAD.length(), seg.getSize());
+		assertEquals(PAYLOAD, seg.getPayLoad());
+	}
+
+	/* the binary Ack encodeBinaryAck writes, trimmed to its length */
+	private static byte[] ack(int seqNum, long sackBits, boolean selective, SegmentChecksum algorithm) {
+		byte[] dst = new byte[SegmentCodec.HEADER_SIZE + 16];
+		return Arrays.copyOf(dst, SegmentCodec.encodeBinaryAck(dst, seqNum, sackBits, selective, algorithm));
+	}
+
+	/* a binary Ack with the given payload in place of a SACK bitmap, unchecked (checksum=none) */
+	private static ByteBuffer ackWithPayload(String payload) {
+		Segment seg = new Segment(7, SegmentType.Ack, payload, 3);
+		return ByteBuffer.wrap(SegmentCodec.encodeBinary(seg, SegmentChecksum.NONE));
+	}
+
+	@Test
+	public void binarySegmentRoundTrips() throws IOException {
+		for (SegmentChecksum checksum : new SegmentChecksum[] { SegmentChecksum.CRC_32, SegmentChecksum.CRC_32C, SegmentChecksum.NONE }) {
+			byte[] data = SegmentCodec.encodeBinary(data(12), checksum);
+			assertEquals(SegmentCodec.HEADER_SIZE + PAYLOAD.length(), data.length);
+			Segment seg = SegmentCodec.decode(data, 0, data.length, checksum);
+			assertSameData(seg, 12);
+			assertTrue(seg.isValid());
+			assertTrue(SegmentCodec.isValid(ByteBuffer.wrap(data), checksum));
+		}
+	}
+
+	@Test
+	public void bufferEncodingMatchesTheArrayEncoding() throws IOException {
+		byte[] expected = SegmentCodec.encodeBinary(data(3), SegmentChecksum.CRC_32C);
+		ByteBuffer buf = ByteBuffer.allocate(5 + expected.length);
+		buf.position(5);
+		Segment seg = data(3);
+		SegmentCodec.encodeBinary(seg, buf, SegmentChecksum.CRC_32C);
+		assertEquals(buf.capacity(), buf.position());
+		assertArrayEquals(expected, Arrays.copyOfRange(buf.array(), 5, buf.capacity()));
+		assertEquals(SegmentChecksum.CRC_32C.getId(), seg.getChecksum() >>> 32);
+
+		buf.position(5);
+		assertTrue(SegmentCodec.isValid(buf, SegmentChecksum.CRC_32C));
+		assertEquals(3, SegmentCodec.seqNumOf(buf));
+		assertSameData(SegmentCodec.decode(buf.array(), 5, expected.length, SegmentChecksum.CRC_32C), 3);
+	}
+
+	@Test
+	public void javaSegmentRoundTrips() throws IOException {
+		byte[] data = SegmentCodec.encode(data(1), SegmentCodec.JAVA, SegmentChecksum.CRC_32C);
+		assertFalse(data[0] == SegmentCodec.MAGIC);
+		Segment seg = SegmentCodec.decode(data, 0, data.length, SegmentChecksum.CRC_32C);
+		assertSameData(seg, 1);
+		assertTrue(seg.isValid());
+		assertFalse(SegmentCodec.decode(data, 0, data.length, SegmentChecksum.CRC_32).isValid());
+	}
+
+	@Test
+	public void truncatedHeaderIsRejected() {
+		byte[] data = SegmentCodec.encodeBinary(data(1), SegmentChecksum.CRC_32);
+		IOException e = assertThrows(IOException.class, () -> SegmentCodec.decode(data, 0, SegmentCodec.HEADER_SIZE - 1, SegmentChecksum.CRC_32));
+		assertTrue(e.getMessage().startsWith("Truncated Segment Header"));
+		assertFalse(SegmentCodec.isBinary(ByteBuffer.wrap(data, 0, SegmentCodec.HEADER_SIZE - 1)));
+	}
+
+	@Test
+	public void truncatedPayloadIsRejected() {
+		byte[] data = SegmentCodec.encodeBinary(data(1), SegmentChecksum.CRC_32);
+		IOException e = assertThrows(IOException.class, () -> SegmentCodec.decode(data, 0, data.length - 1, SegmentChecksum.CRC_32));
+		assertTrue(e.getMessage().startsWith("Truncated Segment Payload"));
+		assertFalse(SegmentCodec.isValid(ByteBuffer.wrap(data, 0, data.length - 1), SegmentChecksum.CRC_32));
+	}
+
+	@Test
+	public void unknownTypeIsRejected() {
+		byte[] data = SegmentCodec.encodeBinary(data(1), SegmentChecksum.CRC_32);
+		data[1] = (byte) ((data[1] & 0xF0) | 0x09);
+		IOException e = assertThrows(IOException.class, () -> SegmentCodec.decode(data, 0, data.length, SegmentChecksum.CRC_32));
+		assertTrue(e.getMessage().startsWith("Unknown Segment Type"));
+		assertNull(SegmentCodec.typeOf(ByteBuffer.wrap(data)));
+	}
+
+	@Test
+	public void damagedHeaderFailsTheChecksum() throws IOException {
+		byte[] data = SegmentCodec.encodeBinary(data(1), SegmentChecksum.CRC_32C);
+		data[5] ^= 0x02;
+		assertFalse(SegmentCodec.decode(data, 0, data.length, SegmentChecksum.CRC_32C).isValid());
+		assertFalse(SegmentCodec.isValid(ByteBuffer.wrap(data), SegmentChecksum.CRC_32C));
+	}
+
+	@Test
+	public void otherAlgorithmThanTheFlowsFails() throws IOException {
+		byte[] data = SegmentCodec.encodeBinary(data(1), SegmentChecksum.CRC_32C);
+		assertFalse(SegmentCodec.decode(data, 0, data.length, SegmentChecksum.CRC_32).isValid());
+		assertFalse(SegmentCodec.decode(data, 0, data.length, SegmentChecksum.NONE).isValid());
+		assertFalse(SegmentCodec.isValid(ByteBuffer.wrap(data), SegmentChecksum.NONE));
+	}
+
+	@Test
+	public void metaSegmentIsAlwaysCrc32() throws IOException {
+		Segment meta = new Segment(0, SegmentType.Meta, "out.txt,1000,50,checksum=crc32c", 31);
+		byte[] data = SegmentCodec.encodeBinary(meta, SegmentChecksum.CRC_32C);
+		assertEquals(SegmentChecksum.CRC_32.getId(), (data[1] >>> 4) & 0x0F);
+		assertTrue(SegmentCodec.decode(data, 0, data.length, SegmentChecksum.CRC_32C).isValid());
+	}
+
+	@Test
+	public void selectiveAckRoundTrips() throws IOException {
+		for (long bits : new long[] { 0L, 1L, 0b1010L, 0xFFL, Long.MIN_VALUE, -1L }) {
+			byte[] data = ack(42, bits, true, SegmentChecksum.CRC_32C);
+			ByteBuffer buf = ByteBuffer.wrap(data);
+			assertTrue(SegmentCodec.isBinary(buf));
+			assertEquals(SegmentType.Ack, SegmentCodec.typeOf(buf));
+			assertEquals(42, SegmentCodec.seqNumOf(buf));
+			assertTrue(SegmentCodec.isValid(buf, SegmentChecksum.CRC_32C));
+			assertEquals(bits, SegmentCodec.sackBitsOf(buf));
+
+			Segment seg = SegmentCodec.decode(data, 0, data.length, SegmentChecksum.CRC_32C);
+			assertTrue(seg.isValid());
+			assertEquals(SegmentType.Ack, seg.getType());
+			assertEquals(42, seg.getSeqNum());
+			assertEquals(bits, SegmentCodec.parseSackBits(seg.getPayLoad()));
+		}
+	}
+
+	@Test
+	public void plainAckHasNoBitmap() throws IOException {
+		byte[] data = ack(3, 0b110L, false, SegmentChecksum.CRC_32);
+		assertEquals(SegmentCodec.HEADER_SIZE, data.length);
+		assertEquals(0L, SegmentCodec.sackBitsOf(ByteBuffer.wrap(data)));
+		assertEquals("", SegmentCodec.decode(data, 0, data.length, SegmentChecksum.CRC_32).getPayLoad());
+	}
+
+	@Test
+	public void ackMatchesTheSegmentEncoding() {
+		Segment seg = new Segment(9, SegmentType.Ack, "a", 3);
+		assertArrayEquals(SegmentCodec.encodeBinary(seg, SegmentChecksum.CRC_32), ack(9, 0b1010L, true, SegmentChecksum.CRC_32));
+	}
+
+	@Test
+	public void nonHexBitmapGivesNoSackBits() {
+		assertEquals(0L, SegmentCodec.sackBitsOf(ackWithPayload("1z")));
+		assertEquals(0L, SegmentCodec.sackBitsOf(ackWithPayload("-1")));
+		assertEquals(0L, SegmentCodec.parseSackBits("1z"));
+		assertEquals(0L, SegmentCodec.parseSackBits("-1"));
+	}
+
+	@Test
+	public void overlongBitmapGivesNoSackBits() {
+		String digits = "1".repeat(SegmentCodec.SACK_DIGITS + 1);
+		assertEquals(0L, SegmentCodec.sackBitsOf(ackWithPayload(digits)));
+		assertEquals(0L, SegmentCodec.parseSackBits(digits));
+	}
+
+	@Test
+	public void bitmapPastTheDatagramGivesNoSackBits() {
+		byte[] data = ack(5, 0xABCL, true, SegmentChecksum.NONE);
+		ByteBuffer buf = ByteBuffer.wrap(data, 0, data.length - 1);
+		assertEquals(0L, SegmentCodec.sackBitsOf(buf));
+	}
+}
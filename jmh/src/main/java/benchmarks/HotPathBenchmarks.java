@@ -0,0 +1,113 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * JMH benchmarks of the work done once per segment: encoding and decoding a Segment with either codec,
+ * the checksums (CRC32 and CRC32C over a payload, CRC32C over an encoded binary segment), parsing CSV lines
+ * into the Reading payload form and splitting a payload back into readings.
+ *
+ * The assignment classes live in the default package, which JMH cannot generate code for and a named package
+ * cannot import, so every benchmark runs the operation of the same name in the javac-only Benchmark class
+ * (looked up once in setup through Benchmark.op). Each benchmark runs in a fork of its own, so its call into
+ * the operation stays monomorphic and is inlined, and the result is returned for JMH to consume.
+ *
+ * To run: mvn -B package, then java -jar jmh/target/benchmarks.jar [regexp] [-p patch=100]
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 5, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(1)
+public class HotPathBenchmarks {
+
+	@Param({"10"})
+	public int patch;                         // readings per payload
+
+	private LongSupplier encodeJava;
+	private LongSupplier encodeBin;
+	private LongSupplier decodeJava;
+	private LongSupplier decodeBin;
+	private LongSupplier crc32;
+	private LongSupplier crc32c;
+	private LongSupplier wireCrc32c;
+	private LongSupplier csvFormat;
+	private LongSupplier payloadSplit;
+
+	/* looks up the operations over a payload of patch readings */
+	@Setup
+	public void setup() throws ReflectiveOperationException {
+		encodeJava = op("segment.encode.java");
+		encodeBin = op("segment.encode.bin");
+		decodeJava = op("segment.decode.java");
+		decodeBin = op("segment.decode.bin");
+		crc32 = op("checksum.crc32");
+		crc32c = op("checksum.crc32c");
+		wireCrc32c = op("checksum.wire.crc32c");
+		csvFormat = op("csv.format");
+		payloadSplit = op("payload.split");
+	}
+
+	private LongSupplier op(String name) throws ReflectiveOperationException {
+		return (LongSupplier) Class.forName("Benchmark").getMethod("op", String.class, int.class).invoke(null, name, patch);
+	}
+
+	@Benchmark
+	public long segmentEncodeJava() {
+		return encodeJava.getAsLong();
+	}
+
+	@Benchmark
+	public long segmentEncodeBin() {
+		return encodeBin.getAsLong();
+	}
+
+	@Benchmark
+	public long segmentDecodeJava() {
+		return decodeJava.getAsLong();
+	}
+
+	@Benchmark
+	public long segmentDecodeBin() {
+		return decodeBin.getAsLong();
+	}
+
+	@Benchmark
+	public long checksumCrc32() {
+		return crc32.getAsLong();
+	}
+
+	@Benchmark
+	public long checksumCrc32c() {
+		return crc32c.getAsLong();
+	}
+
+	@Benchmark
+	public long checksumWireCrc32c() {
+		return wireCrc32c.getAsLong();
+	}
+
+	@Benchmark
+	public long csvFormat() {
+		return csvFormat.getAsLong();
+	}
+
+	@Benchmark
+	public long payloadSplit() {
+		return payloadSplit.getAsLong();
+	}
+}